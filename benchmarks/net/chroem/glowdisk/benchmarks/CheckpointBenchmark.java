@@ -0,0 +1,84 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+import net.chroem.glowdisk.virtualutils.MemoryBackedVirtualDisk;
+
+/**
+ * Writes the whole manifest of a tree of the given size, as the disk does when its journal fills up or it shuts
+ * down.  The native filesystem has nothing like it, so unlike the other benchmarks this one only runs against a
+ * memory-backed disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckpointBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int treeSize;
+
+	private File diskFile;
+	private MemoryBackedVirtualDisk disk;
+
+	@Setup
+	public void setUp() throws IOException {
+		diskFile = File.createTempFile("checkpoint", ".gldsk");
+		disk = new MemoryBackedVirtualDisk(diskFile, 1024L * 1024L * 1024L);
+		for (int i = 0; i < treeSize; i++) {
+			GlowFile file = new GlowFile("/tree/" + (i / 1000) + "/" + (i / 100 % 10) + "/" + i + ".dat");
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		diskFile.deleteOnExit();
+	}
+
+	@Benchmark
+	public void checkpoint() {
+		disk.updateFileManifest();
+	}
+
+}
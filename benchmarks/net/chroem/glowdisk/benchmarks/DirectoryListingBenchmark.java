@@ -0,0 +1,106 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Lists a directory of the given size, the way a world's region or player folder is scanned.  The glob picks out
+ * one name in a hundred, so it mostly measures how quickly names are rejected.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryListingBenchmark extends DiskBenchmark {
+
+	@Param({"10", "1000", "10000"})
+	public int entries;
+
+	private GlowFile directory;
+
+	@Setup
+	public void setUp() throws IOException {
+		directory = file("/listing");
+		directory.mkdirs();
+		for (int i = 0; i < entries; i++) {
+			new GlowFile(directory, "r." + (i / 100) + "." + (i % 100) + ".mca").createNewFile();
+		}
+	}
+
+	@Benchmark
+	public int list() {
+		return directory.list().length;
+	}
+
+	@Benchmark
+	public int listFiles() {
+		return directory.listFiles().length;
+	}
+
+	@Benchmark
+	public int stream() throws IOException {
+		int count = 0;
+		DirectoryStream<GlowFile> stream = directory.newDirectoryStream();
+		try {
+			for (GlowFile file : stream) {
+				count++;
+			}
+		} finally {
+			stream.close();
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int glob() throws IOException {
+		int count = 0;
+		DirectoryStream<GlowFile> stream = directory.newDirectoryStream("r.*.7.mca");
+		try {
+			for (GlowFile file : stream) {
+				count++;
+			}
+		} finally {
+			stream.close();
+		}
+		return count;
+	}
+
+}
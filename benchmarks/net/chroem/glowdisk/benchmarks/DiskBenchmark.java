@@ -0,0 +1,120 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import net.chroem.glowdisk.GlowFile;
+import net.chroem.glowdisk.virtualutils.MemoryBackedVirtualDisk;
+import net.chroem.glowdisk.virtualutils.VirtualDisk;
+
+/**
+ * Runs a benchmark against either a memory-backed disk or the native filesystem, both in a fresh temporary
+ * location.  GlowFile picks a branch once a disk has been mounted and never goes back, so each backend has to run in
+ * a JVM of its own: JMH forks one for every parameter combination as long as the benchmarks are not run with -f 0.
+ *
+ * Paths handed to file are written as if they were on the disk, starting with a separator.  Everything a benchmark
+ * reads is written by it in its setup, from a fixed seed, so the suite runs the same on any machine.
+ */
+@State(Scope.Benchmark)
+public abstract class DiskBenchmark {
+
+	protected static final long DISK_SIZE = 1024L * 1024L * 1024L;
+
+	@Param({"memory", "native"})
+	public String backend;
+
+	protected VirtualDisk disk;
+	private File diskFile;
+	private File directory;
+	private String root;
+
+	@Setup
+	public void mount() throws IOException {
+		if (backend.equals("memory")) {
+			diskFile = File.createTempFile("glowdisk-benchmark", ".gldsk");
+			disk = new MemoryBackedVirtualDisk(diskFile, DISK_SIZE);
+			root = "";
+		} else if (backend.equals("native")) {
+			if (VirtualDisk.isEnabled()) throw new IllegalStateException("The native backend cannot run in the same JVM as a mounted disk!");
+			directory = Files.createTempDirectory("glowdisk-benchmark").toFile();
+			root = directory.getAbsolutePath();
+		} else {
+			throw new IllegalArgumentException("Unknown backend " + backend + "!");
+		}
+	}
+
+	@TearDown
+	public void unmount() {
+		if (diskFile != null) {
+			diskFile.deleteOnExit();
+		}
+		if (directory != null) {
+			delete(directory);
+		}
+	}
+
+	protected GlowFile file(String path) {
+		return new GlowFile(root + path);
+	}
+
+	protected boolean isVirtual() {
+		return disk != null;
+	}
+
+	//writes the given number of bytes of seeded noise, creating the file and its parents
+	protected void generate(GlowFile file, long size, long seed) throws IOException {
+		file.getParentFile().mkdirs();
+		byte[] data = new byte[64 * 1024];
+		Random random = new Random(seed);
+		OutputStream output = file.getOutputStream();
+		try {
+			for (long written = 0; written < size; written += data.length) {
+				random.nextBytes(data);
+				output.write(data, 0, (int) Math.min(data.length, size - written));
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
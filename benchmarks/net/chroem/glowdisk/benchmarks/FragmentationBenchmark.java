@@ -0,0 +1,96 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Writes and deletes a file after the free space has been cut into the given number of holes, by filling it with
+ * small files and deleting every other one.  The slabs are turned off, so that the small files take up space of
+ * their own the way they would on the native filesystem.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentationBenchmark extends DiskBenchmark {
+
+	private static final int HOLE_SIZE = 8 * 1024;
+
+	@Param({"0", "1000", "10000"})
+	public int holes;
+
+	@Param({"65536", "1048576"})
+	public int fileSize;
+
+	private String path;
+	private byte[] data;
+
+	@Setup
+	public void setUp() throws IOException {
+		if (isVirtual()) {
+			disk.setSmallFileThreshold(0);
+		}
+		file("/fragmented").mkdirs();
+		for (int i = 0; i < holes * 2; i++) {
+			generate(file("/fragmented/" + i), HOLE_SIZE, i);
+		}
+		for (int i = 0; i < holes * 2; i += 2) {
+			file("/fragmented/" + i).delete();
+		}
+		path = file("/allocated").getAbsolutePath();
+		data = new byte[fileSize];
+		new Random(8).nextBytes(data);
+	}
+
+	@Benchmark
+	public boolean writeAndDelete() throws IOException {
+		GlowFile file = new GlowFile(path);
+		OutputStream output = file.getOutputStream();
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+		return new GlowFile(path).delete();
+	}
+
+}
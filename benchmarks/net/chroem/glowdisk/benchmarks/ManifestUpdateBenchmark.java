@@ -0,0 +1,96 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Makes changes that only touch the metadata, each of which the memory-backed disk records in its journal and
+ * the native filesystem in its own.  The tree holds the given number of other files, which a checkpoint has to
+ * write out whenever the journal fills up.  Group commit only applies to the memory-backed disk, the native runs
+ * with it on are there to keep the table even.  See CheckpointBenchmark for the cost of a checkpoint by itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestUpdateBenchmark extends DiskBenchmark {
+
+	@Param({"100", "10000"})
+	public int treeSize;
+
+	@Param({"false", "true"})
+	public boolean groupCommit;
+
+	private String first;
+	private String second;
+	private String empty;
+	private boolean renamed = false;
+
+	@Setup
+	public void setUp() throws IOException {
+		for (int i = 0; i < treeSize; i++) {
+			GlowFile file = file("/tree/" + (i / 100) + "/" + i + ".dat");
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		}
+		GlowFile file = file("/manifest/first.dat");
+		generate(file, 4096, 9);
+		first = file.getAbsolutePath();
+		second = file("/manifest/second.dat").getAbsolutePath();
+		empty = file("/manifest/empty.dat").getAbsolutePath();
+		if (isVirtual() && groupCommit) {
+			disk.setGroupCommit(10, 1000);
+		}
+	}
+
+	@Benchmark
+	public boolean rename() {
+		boolean success = renamed ? new GlowFile(second).renameTo(new GlowFile(first)) : new GlowFile(first).renameTo(new GlowFile(second));
+		renamed = !renamed;
+		return success;
+	}
+
+	@Benchmark
+	public boolean createAndDelete() throws IOException {
+		new GlowFile(empty).createNewFile();
+		return new GlowFile(empty).delete();
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Looks up a file at the bottom of a tree of the given depth, with the given number of siblings at every level so
+ * that each step is a real lookup.  A thousand or so is what a world's region directory holds.  missing looks up a
+ * name that is not there, which the path cache does not remember, so it walks the tree every time.  Run it with the
+ * gc profiler (-prof gc) to see what a walk allocates on top of the GlowFile itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathLookupBenchmark extends DiskBenchmark {
+
+	@Param({"1", "4", "16"})
+	public int depth;
+
+	@Param({"8", "1024"})
+	public int siblings;
+
+	private String path;
+	private String missingPath;
+
+	@Setup
+	public void setUp() throws IOException {
+		StringBuilder directory = new StringBuilder();
+		for (int level = 0; level < depth; level++) {
+			for (int i = 1; i < siblings; i++) {
+				file(directory + "/sibling" + i).createNewFile();
+			}
+			directory.append("/level").append(level);
+			file(directory.toString()).mkdirs();
+		}
+		GlowFile file = file(directory + "/leaf.dat");
+		generate(file, 1024, 7);
+		path = file.getAbsolutePath();
+		missingPath = file(directory + "/missing.dat").getAbsolutePath();
+	}
+
+	@Benchmark
+	public boolean exists() {
+		return new GlowFile(path).exists();
+	}
+
+	@Benchmark
+	public boolean missing() {
+		return new GlowFile(missingPath).exists();
+	}
+
+	//looks the file up and opens it, as loading a chunk does
+	@Benchmark
+	public int open() throws IOException {
+		InputStream input = new GlowFile(path).getInputStream();
+		try {
+			return input.read();
+		} finally {
+			input.close();
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Reads and writes single blocks at random, block-aligned positions of a file through a FileChannel, the way a
+ * region file's chunks are accessed.  The positions come from a seeded generator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RandomIOBenchmark extends DiskBenchmark {
+
+	private static final long FILE_SIZE = 64L * 1024L * 1024L;
+
+	@Param({"512", "4096", "65536"})
+	public int blockSize;
+
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private Random random;
+	private int blocks;
+
+	@Setup
+	public void setUp() throws IOException {
+		GlowFile file = file("/random/data");
+		generate(file, FILE_SIZE, 3);
+		channel = file.getChannel();
+		byte[] data = new byte[blockSize];
+		new Random(4).nextBytes(data);
+		buffer = ByteBuffer.wrap(data);
+		random = new Random(5);
+		blocks = (int) (FILE_SIZE / blockSize);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		channel.close();
+	}
+
+	@Benchmark
+	public int read() throws IOException {
+		buffer.clear();
+		return channel.read(buffer, (long) random.nextInt(blocks) * blockSize);
+	}
+
+	@Benchmark
+	public int write() throws IOException {
+		buffer.clear();
+		return channel.write(buffer, (long) random.nextInt(blocks) * blockSize);
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Runs the same work on one thread, on four and on one per processor, each thread with a file and a directory of
+ * its own, the way a server saves its worlds in parallel.  The throughput is per thread, so it stays flat for as
+ * long as the disk scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScalingBenchmark extends DiskBenchmark {
+
+	private static final long FILE_SIZE = 16L * 1024L * 1024L;
+	private static final int BLOCK_SIZE = 4096;
+	private static final int CHURN_SIZE = 4096;
+
+	private final AtomicInteger threads = new AtomicInteger();
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private Random random;
+		private String churnPath;
+		private byte[] churnData;
+
+		@Setup
+		public void setUp(ScalingBenchmark benchmark) throws IOException {
+			int id = benchmark.threads.getAndIncrement();
+			GlowFile file = benchmark.file("/scaling/" + id + "/data");
+			benchmark.generate(file, FILE_SIZE, id);
+			channel = file.getChannel();
+			byte[] data = new byte[BLOCK_SIZE];
+			random = new Random(id);
+			random.nextBytes(data);
+			buffer = ByteBuffer.wrap(data);
+			churnPath = benchmark.file("/scaling/" + id + "/churn").getAbsolutePath();
+			churnData = new byte[CHURN_SIZE];
+			random.nextBytes(churnData);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			channel.close();
+		}
+
+		private int read() throws IOException {
+			buffer.clear();
+			return channel.read(buffer, (long) random.nextInt((int) (FILE_SIZE / BLOCK_SIZE)) * BLOCK_SIZE);
+		}
+
+		private int write() throws IOException {
+			buffer.clear();
+			return channel.write(buffer, (long) random.nextInt((int) (FILE_SIZE / BLOCK_SIZE)) * BLOCK_SIZE);
+		}
+
+		private boolean churn() throws IOException {
+			OutputStream output = new GlowFile(churnPath).getOutputStream();
+			try {
+				output.write(churnData);
+			} finally {
+				output.close();
+			}
+			return new GlowFile(churnPath).delete();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int readOneThread(ThreadState state) throws IOException {
+		return state.read();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int readFourThreads(ThreadState state) throws IOException {
+		return state.read();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public int readAllThreads(ThreadState state) throws IOException {
+		return state.read();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public int writeOneThread(ThreadState state) throws IOException {
+		return state.write();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int writeFourThreads(ThreadState state) throws IOException {
+		return state.write();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public int writeAllThreads(ThreadState state) throws IOException {
+		return state.write();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean churnOneThread(ThreadState state) throws IOException {
+		return state.churn();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean churnFourThreads(ThreadState state) throws IOException {
+		return state.churn();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public boolean churnAllThreads(ThreadState state) throws IOException {
+		return state.churn();
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Streams a whole file through GlowFile's input and output streams, one buffer at a time.  The score is the time
+ * to move FILE_SIZE bytes, so the throughput is FILE_SIZE divided by it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequentialIOBenchmark extends DiskBenchmark {
+
+	private static final long FILE_SIZE = 64L * 1024L * 1024L;
+
+	@Param({"512", "4096", "65536", "1048576"})
+	public int bufferSize;
+
+	private GlowFile source;
+	private GlowFile target;
+	private byte[] buffer;
+
+	@Setup
+	public void setUp() throws IOException {
+		source = file("/sequential/source");
+		target = file("/sequential/target");
+		generate(source, FILE_SIZE, 1);
+		buffer = new byte[bufferSize];
+		new Random(2).nextBytes(buffer);
+	}
+
+	@Benchmark
+	public long read() throws IOException {
+		long total = 0;
+		InputStream input = source.getInputStream();
+		try {
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				total += read;
+			}
+		} finally {
+			input.close();
+		}
+		return total;
+	}
+
+	//overwrites the same file every time, which is how a save rewrites a region
+	@Benchmark
+	public void write() throws IOException {
+		OutputStream output = target.getOutputStream();
+		try {
+			for (long written = 0; written < FILE_SIZE; written += buffer.length) {
+				output.write(buffer, 0, (int) Math.min(buffer.length, FILE_SIZE - written));
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.chroem.glowdisk.GlowFile;
+
+/**
+ * Creates, writes and deletes small files, the way player data and temporary saves come and go.  The names cycle
+ * through a fixed set of slots, half of which hold a file at any time, so the directory neither grows nor empties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmallFileChurnBenchmark extends DiskBenchmark {
+
+	private static final int SLOTS = 1024;
+
+	@Param({"0", "1024", "16384"})
+	public int fileSize;
+
+	//a GlowFile holds on to the file it found, so a new one is made for each create and delete
+	private String[] paths;
+	private byte[] data;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		paths = new String[SLOTS];
+		for (int i = 0; i < SLOTS; i++) {
+			paths[i] = file("/churn/" + i + ".dat").getAbsolutePath();
+		}
+		file("/churn").mkdirs();
+		data = new byte[fileSize];
+		new Random(6).nextBytes(data);
+		for (int i = 0; i < SLOTS / 2; i++) {
+			write(new GlowFile(paths[i]));
+		}
+	}
+
+	//writes the slot half a cycle ahead and deletes the oldest one
+	@Benchmark
+	public boolean createAndDelete() throws IOException {
+		write(new GlowFile(paths[(next + SLOTS / 2) % SLOTS]));
+		boolean deleted = new GlowFile(paths[next]).delete();
+		next = (next + 1) % SLOTS;
+		return deleted;
+	}
+
+	private void write(GlowFile file) throws IOException {
+		OutputStream output = file.getOutputStream();
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+	}
+
+}
@@ -0,0 +1,189 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.chroem.glowdisk.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.chroem.glowdisk.GlowFile;
+import net.chroem.glowdisk.GlowFileChannel;
+import net.chroem.glowdisk.GlowFileInputStream;
+import net.chroem.glowdisk.GlowFileOutputStream;
+import net.chroem.glowdisk.virtualutils.MemoryBackedVirtualDisk;
+
+/**
+ * Hammers a memory-backed disk of its own from many threads at once.  Readers read a set of files that never change,
+ * while each writer rewrites a file of its own at a new size every time and reads it straight back, so allocations
+ * and frees from every writer race with each other and with the reads.  Half of all reads go through a stream and
+ * half through a channel.
+ *
+ * Run it with the number of readers, writers, files and iterations per thread, or none for the defaults.  It throws
+ * once every thread is done if any read came back corrupted or any thread failed, so the JVM exits with an error.
+ */
+public class StressTest {
+
+	private static final long DISK_SIZE = 512L * 1024L * 1024L;
+
+	private final int fileCount;
+	private final int iterations;
+	private final AtomicInteger reads = new AtomicInteger();
+	private final AtomicInteger corruptedReads = new AtomicInteger();
+	private final AtomicInteger failedThreads = new AtomicInteger();
+
+	private StressTest(int fileCount, int iterations) {
+		this.fileCount = fileCount;
+		this.iterations = iterations;
+	}
+
+	public static void main(String[] arguments) throws IOException, InterruptedException {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int readerCount = (arguments.length > 0) ? Integer.parseInt(arguments[0]) : processors;
+		int writerCount = (arguments.length > 1) ? Integer.parseInt(arguments[1]) : processors;
+		int fileCount = (arguments.length > 2) ? Integer.parseInt(arguments[2]) : 64;
+		int iterations = (arguments.length > 3) ? Integer.parseInt(arguments[3]) : 2000;
+
+		File diskFile = File.createTempFile("glowdisk-stress", ".gldsk");
+		diskFile.deleteOnExit();
+		new MemoryBackedVirtualDisk(diskFile, DISK_SIZE);
+		new StressTest(fileCount, iterations).run(readerCount, writerCount);
+	}
+
+	private void run(int readerCount, int writerCount) throws IOException, InterruptedException {
+		for (int i = 0; i < fileCount; i++) {
+			write(new GlowFile("/stress/read/" + i), generateData(i, 0));
+		}
+
+		Thread[] threads = new Thread[readerCount + writerCount];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			final boolean writer = t >= readerCount;
+			threads[t] = new Thread("GlowDisk stress " + ((writer) ? "writer " : "reader ") + id) {
+
+				@Override
+				public void run() {
+					try {
+						if (writer) {
+							write(id);
+						} else {
+							read(id);
+						}
+					} catch (Throwable e) {
+						e.printStackTrace();
+						failedThreads.incrementAndGet();
+					}
+				}
+
+			};
+		}
+		long startTime = System.currentTimeMillis();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		System.out.println(readerCount + " readers and " + writerCount + " writers made " + reads.get() + " reads in "
+				+ (System.currentTimeMillis() - startTime) + "ms");
+		if (corruptedReads.get() > 0 || failedThreads.get() > 0) {
+			throw new IllegalStateException(corruptedReads.get() + " reads came back corrupted and " + failedThreads.get() + " threads failed!");
+		}
+	}
+
+	private void read(int id) throws IOException {
+		Random random = new Random(id);
+		for (int i = 0; i < iterations; i++) {
+			int fileNumber = random.nextInt(fileCount);
+			check(new GlowFile("/stress/read/" + fileNumber), generateData(fileNumber, 0), i % 2 == 0);
+		}
+	}
+
+	//every writer has a file of its own, rewritten with new data of a new size each time
+	private void write(int id) throws IOException {
+		GlowFile file = new GlowFile("/stress/write/" + id);
+		for (int i = 0; i < iterations; i++) {
+			byte[] data = generateData(id, i + 1);
+			write(file, data);
+			check(file, data, i % 2 == 0);
+		}
+	}
+
+	private void check(GlowFile file, byte[] expected, boolean stream) throws IOException {
+		byte[] actual = new byte[expected.length];
+		if (stream) {
+			InputStream input = new GlowFileInputStream(file);
+			try {
+				int offset = 0;
+				int length;
+				while (offset < actual.length && (length = input.read(actual, offset, actual.length - offset)) > 0) {
+					offset += length;
+				}
+				//anything left over is corruption too
+				if (input.read() != -1) {
+					actual = null;
+				}
+			} finally {
+				input.close();
+			}
+		} else {
+			GlowFileChannel channel = new GlowFileChannel(file);
+			try {
+				if (channel.size() != expected.length) {
+					actual = null;
+				} else {
+					ByteBuffer buffer = ByteBuffer.wrap(actual);
+					while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+						continue;
+					}
+				}
+			} finally {
+				channel.close();
+			}
+		}
+		reads.incrementAndGet();
+		if (!Arrays.equals(expected, actual)) {
+			System.err.println("Corrupted read of " + file.getAbsolutePath());
+			corruptedReads.incrementAndGet();
+		}
+	}
+
+	private static void write(GlowFile file, byte[] data) throws IOException {
+		file.getParentFile().mkdirs();
+		OutputStream output = new GlowFileOutputStream(file);
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+	}
+
+	private static byte[] generateData(int seed, int generation) {
+		byte[] data = new byte[16 * 1024 + (seed * 1031 + generation * 4099) % (96 * 1024)];
+		new Random(seed * 31L + generation).nextBytes(data);
+		return data;
+	}
+
+}
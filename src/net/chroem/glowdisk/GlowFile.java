@@ -27,8 +27,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -67,7 +75,8 @@ public class GlowFile {
 	}
 	
 	public GlowFile(GlowFile parent, String child) {
-		this.filePath = parent.getAbsolutePath() + child;
+		String parentPath = parent.getAbsolutePath();
+		this.filePath = (parentPath.endsWith(separator)) ? parentPath + child : parentPath + separator + child;
 		if (isVirtual) {
 			this.file = null;
 			this.virtualFile = getVirtualFileByPath();
@@ -87,18 +96,9 @@ public class GlowFile {
 		this.file = file;
 	}
 
+	//returns null if there is no such file, hot files are usually found in the disk's path cache
 	private VirtualFile getVirtualFileByPath() {
-		try {
-			return getVirtualFileByPath(this.filePath);
-		} catch (FileNotFoundException e) {
-			return null;
-		}
-	}
-	
-	private VirtualFile getVirtualFileByPath(String filePath) throws FileNotFoundException{
-		String[] path = filePath.split(separator);
-		path = (path[0].equals("")) ? Arrays.copyOfRange(path, 1, path.length) : path;
-		return virtualFile = VirtualDisk.getPrimaryDisk().getRoot().getChild(path);
+		return VirtualDisk.getPrimaryDisk().getFile(this.filePath);
 	}
 	
 	protected boolean isVirtual() {
@@ -139,6 +139,54 @@ public class GlowFile {
 		}
 	}
 	
+	public FileChannel getChannel() throws IOException, FileNotFoundException {
+		return getChannel("rw");
+	}
+	
+	/**
+	 * Takes the same modes as RandomAccessFile.  A virtual file's channel cannot be mapped, since its extents can be
+	 * moved at any time, so map throws UnsupportedOperationException.  Its locks only exclude other channels on the
+	 * same disk, which only this JVM can open.
+	 */
+	public FileChannel getChannel(String mode) throws IOException, FileNotFoundException {
+		if (isVirtual) {
+			if (!exists()) {
+				if (mode.equals("r")) {
+					throw new FileNotFoundException("The file that is attempting to be read does not yet exist!");
+				}
+				this.getParentFile().mkdirs();
+				this.createNewFile();
+			}
+			return VirtualDisk.getPrimaryDisk().getChannel(this.virtualFile, mode);
+		} else {
+			return new RandomAccessFile(this.file, mode).getChannel();
+		}
+	}
+	
+	/**
+	 * Reserves room for the file to grow to the given size, so that writing it does not have to grow it piece by piece.
+	 * The file is created if it does not exist yet.  Returns false if the space could not be reserved, which is always
+	 * the case on the native filesystem.
+	 */
+	public boolean preallocate(long size) throws IOException {
+		if (isVirtual) {
+			if (!exists()) {
+				this.getParentFile().mkdirs();
+				this.createNewFile();
+			}
+			if (this.virtualFile.isDirectory()) {
+				throw new IOException("The requested file is a directory and cannot be preallocated!");
+			}
+			try {
+				return this.virtualFile.preallocate(size);
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+		} else {
+			return false;
+		}
+	}
+	
 	//check the following to make sure they have the correct throws statements!!!!
 	
 	public String getName() {
@@ -146,7 +194,7 @@ public class GlowFile {
 		if (parentPath.endsWith(separator)) {
 			parentPath = filePath.substring(0, filePath.length() - 1);
 		}
-		String name = parentPath.substring(parentPath.lastIndexOf(separator), filePath.length());
+		String name = parentPath.substring(parentPath.lastIndexOf(separator) + 1, parentPath.length());
 		return name;
 	}
 	
@@ -198,7 +246,8 @@ public class GlowFile {
 	
 	public boolean exists() {
 		if (isVirtual) {
-			return this.virtualFile != null || ((this.virtualFile = getVirtualFileByPath()) != null);
+			//looked up again every time, since the file may have been deleted or moved through another GlowFile
+			return (this.virtualFile = getVirtualFileByPath()) != null;
 		} else {
 			return file.exists();
 		}
@@ -206,7 +255,7 @@ public class GlowFile {
 	
 	public boolean isDirectory() {
 		if (isVirtual) {
-			return exists() || virtualFile.isDirectory();
+			return exists() && virtualFile.isDirectory();
 		} else {
 			return file.isDirectory();
 		}
@@ -214,7 +263,7 @@ public class GlowFile {
 	
 	public boolean isFile() {
 		if (isVirtual) {
-			return !virtualFile.isDirectory();
+			return exists() && !virtualFile.isDirectory();
 		} else {
 			return file.isFile();
 		}
@@ -247,10 +296,14 @@ public class GlowFile {
 	public boolean createNewFile() throws IOException {
 		if (isVirtual) {
 			GlowFile parent = this.getParentFile();
-			boolean doesNotExist = !exists() && parent.exists();
+			boolean doesNotExist = !exists() && parent.isDirectory();
 			if (doesNotExist) {
-				this.virtualFile = new VirtualFile(parent.getVirtualFile(), this.getName(), false);
-				return true;
+				try {
+					this.virtualFile = new VirtualFile(parent.getVirtualFile(), this.getName(), false);
+				} catch (FileAlreadyExistsException e) {
+					//another thread got there first
+					doesNotExist = false;
+				}
 			}
 			return doesNotExist;
 		} else {
@@ -278,18 +331,16 @@ public class GlowFile {
 		}
 	}
 	
+	//the names of the files in this directory, like File.list
 	public String[] list() {
 		if (isVirtual) {
+			ArrayList<String> names = new ArrayList<String>();
 			if (exists() && virtualFile.isDirectory()) {
-				VirtualFile[] files = virtualFile.getChildren();
-				String[] paths = new String[files.length];
-				for (int i = 0; i < files.length; i++) {
-					paths[i] = files[i].getPath();
+				for (VirtualFile child : virtualFile.newDirectoryStream()) {
+					names.add(child.getName());
 				}
-				return paths;
-			} else {
-				return new String[] {};
 			}
+			return names.toArray(new String[names.size()]);
 		} else {
 			return file.list();
 		}
@@ -298,16 +349,13 @@ public class GlowFile {
 	
 	public GlowFile[] listFiles() {
 		if (isVirtual) {
+			ArrayList<GlowFile> glowFiles = new ArrayList<GlowFile>();
 			if (exists() && virtualFile.isDirectory()) {
-				VirtualFile[] files = virtualFile.getChildren();
-				GlowFile[] glowFiles = new GlowFile[files.length];
-				for (int i = 0; i < files.length; i++) {
-					glowFiles[i] = new GlowFile(files[i]);
+				for (VirtualFile child : virtualFile.newDirectoryStream()) {
+					glowFiles.add(new GlowFile(child));
 				}
-				return glowFiles;
-			} else {
-				return new GlowFile[] {};
 			}
+			return glowFiles.toArray(new GlowFile[glowFiles.size()]);
 		} else {
 			File[] files = file.listFiles();
 			GlowFile[] glowFiles = new GlowFile[files.length];
@@ -318,16 +366,94 @@ public class GlowFile {
 		}
 	}
 
+	public DirectoryStream<GlowFile> newDirectoryStream() throws IOException {
+		return newDirectoryStream(null);
+	}
+	
+	/**
+	 * Lists the files in this directory whose names match the glob as they are iterated over, so that unlike
+	 * listFiles nothing is copied up front.  On a virtual disk the glob may only use * and ?, see
+	 * VirtualDirectoryStream, and on the native filesystem it takes the syntax of FileSystem.getPathMatcher.
+	 */
+	public DirectoryStream<GlowFile> newDirectoryStream(String glob) throws IOException {
+		if (isVirtual) {
+			if (!exists()) {
+				throw new NoSuchFileException(filePath);
+			}
+			if (!virtualFile.isDirectory()) {
+				throw new NotDirectoryException(filePath);
+			}
+			return new HandleStream<VirtualFile>(virtualFile.newDirectoryStream(glob)) {
+				
+				@Override
+				protected GlowFile getHandle(VirtualFile file) {
+					return new GlowFile(file);
+				}
+				
+			};
+		} else {
+			Path path = file.toPath();
+			return new HandleStream<Path>((glob == null) ? Files.newDirectoryStream(path) : Files.newDirectoryStream(path, glob)) {
+				
+				@Override
+				protected GlowFile getHandle(Path path) {
+					return new GlowFile(path.toFile());
+				}
+				
+			};
+		}
+	}
+	
+	//wraps each file of the underlying stream as it is returned
+	private static abstract class HandleStream<T> implements DirectoryStream<GlowFile> {
+		
+		private final DirectoryStream<T> stream;
+		
+		private HandleStream(DirectoryStream<T> stream) {
+			this.stream = stream;
+		}
+		
+		protected abstract GlowFile getHandle(T file);
+		
+		@Override
+		public Iterator<GlowFile> iterator() {
+			final Iterator<T> iterator = stream.iterator();
+			return new Iterator<GlowFile>() {
+				
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+				
+				@Override
+				public GlowFile next() {
+					return getHandle(iterator.next());
+				}
+				
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+				
+			};
+		}
+		
+		@Override
+		public void close() throws IOException {
+			stream.close();
+		}
+		
+	}
 	
 	public boolean mkdir() {// come back
 		if (isVirtual) {
 			GlowFile parent = this.getParentFile();
-			boolean doesNotExist = !exists() && parent.exists();
+			boolean doesNotExist = !exists() && parent.isDirectory();
 			if (doesNotExist) {
 				try {
 						this.virtualFile = new VirtualFile(parent.getVirtualFile(), this.getName(), true);
 						doesNotExist = true;
-					} catch (IllegalArgumentException e) {
+					} catch (FileAlreadyExistsException e) {
 						doesNotExist = false;
 					} 
 				} 
@@ -341,7 +467,11 @@ public class GlowFile {
 		if (isVirtual) {
 			boolean doesNotExist = !exists();
 			if (doesNotExist) {
-				this.virtualFile = VirtualDisk.getPrimaryDisk().mkdirs(this.filePath);
+				try {
+					this.virtualFile = VirtualDisk.getPrimaryDisk().mkdirs(this.filePath);
+				} catch (FileAlreadyExistsException e) {
+					doesNotExist = false;
+				}
 			}
 			return doesNotExist;
 		} else {
@@ -349,25 +479,24 @@ public class GlowFile {
 		}
 	}
 	
-	//possibly incorrect implementation
+	//like File.renameTo this GlowFile keeps its path and no parent is created, a file already at the destination is replaced but a directory is not
 	public boolean renameTo(GlowFile dest) {
-		this.filePath = dest.getAbsolutePath();
 		if (isVirtual) {
-			boolean exists = exists();
-			if (exists) {
-				VirtualFile destination;
-				try {
-					destination = getVirtualFileByPath(dest.getParent());
-					exists = true;
-				} catch (FileNotFoundException e) {
-					GlowFile parent = dest.getParentFile();
-					parent.mkdirs();
-					destination = parent.getVirtualFile();
-				}
-				dest.delete();
-				destination.addChild(this.virtualFile);
+			if (!exists()) {
+				return false;
+			}
+			GlowFile parent = dest.getParentFile();
+			if (parent == null || !parent.isDirectory()) {
+				return false;
+			}
+			if (dest.exists() && dest.getVirtualFile() == this.virtualFile) {
+				return true;
+			}
+			try {
+				return this.virtualFile.moveTo(parent.getVirtualFile(), dest.getName(), true);
+			} catch (IllegalArgumentException e) {
+				return false;
 			}
-			return exists;
 		} else {
 			return file.renameTo(dest.getFile());
 		}
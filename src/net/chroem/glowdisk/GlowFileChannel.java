@@ -20,6 +20,114 @@
 
 package net.chroem.glowdisk;
 
-public class GlowFileChannel {
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
+//wrapper class that hands off to either a native FileChannel or a virtual file's channel
+public class GlowFileChannel extends FileChannel {
+
+	private final FileChannel channel;
+	
+	//unused
+	private GlowFileChannel() {
+		this.channel = null;
+	}
+	
+	public GlowFileChannel(GlowFile file) throws FileNotFoundException, IOException {
+		this.channel = file.getChannel();
+	}
+	
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		return channel.read(dst);
+	}
+	
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		return channel.read(dsts, offset, length);
+	}
+	
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		return channel.read(dst, position);
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return channel.write(src);
+	}
+	
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		return channel.write(srcs, offset, length);
+	}
+	
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		return channel.write(src, position);
+	}
+	
+	@Override
+	public long position() throws IOException {
+		return channel.position();
+	}
+	
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		channel.position(newPosition);
+		return this;
+	}
+	
+	@Override
+	public long size() throws IOException {
+		return channel.size();
+	}
+	
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		channel.truncate(size);
+		return this;
+	}
+	
+	@Override
+	public void force(boolean metaData) throws IOException {
+		channel.force(metaData);
+	}
+	
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		return channel.transferTo(position, count, target);
+	}
+	
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		return channel.transferFrom(src, position, count);
+	}
+	
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		return channel.map(mode, position, size);
+	}
+	
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		return channel.lock(position, size, shared);
+	}
+	
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		return channel.tryLock(position, size, shared);
+	}
+	
+	@Override
+	protected void implCloseChannel() throws IOException {
+		channel.close();
+	}
+	
 }
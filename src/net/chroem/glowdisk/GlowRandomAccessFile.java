@@ -20,6 +20,340 @@
 
 package net.chroem.glowdisk;
 
-public class GlowRandomAccessFile {
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+//works like RandomAccessFile, reading and writing at absolute positions on the file's channel
+public class GlowRandomAccessFile implements DataInput, DataOutput, Closeable {
+
+	private final FileChannel channel;
+	private final boolean writeable;
+	private final ByteBuffer scratch = ByteBuffer.allocate(8);
+	
+	private long filePointer = 0;
+	
+	//unused
+	private GlowRandomAccessFile() {
+		this.channel = null;
+		this.writeable = false;
+	}
+	
+	public GlowRandomAccessFile(GlowFile file, String mode) throws FileNotFoundException, IOException {
+		if (!mode.equals("r") && !mode.equals("rw") && !mode.equals("rws") && !mode.equals("rwd")) {
+			throw new IllegalArgumentException("Illegal mode \"" + mode + "\" must be one of \"r\", \"rw\", \"rws\", or \"rwd\"");
+		}
+		this.writeable = !mode.equals("r");
+		this.channel = file.getChannel(mode);
+	}
+	
+	public GlowRandomAccessFile(String name, String mode) throws FileNotFoundException, IOException {
+		this(new GlowFile(name), mode);
+	}
+	
+	public FileChannel getChannel() {
+		return this.channel;
+	}
+	
+	public long getFilePointer() throws IOException {
+		return this.filePointer;
+	}
+	
+	public void seek(long pos) throws IOException {
+		if (pos < 0) throw new IOException("Negative seek offset");
+		this.filePointer = pos;
+	}
+	
+	public long length() throws IOException {
+		return channel.size();
+	}
+	
+	public void setLength(long newLength) throws IOException {
+		ensureWriteable();
+		long length = channel.size();
+		if (newLength < length) {
+			channel.truncate(newLength);
+		} else if (newLength > length) {
+			channel.write(ByteBuffer.wrap(new byte[1]), newLength - 1);
+		}
+		if (filePointer > newLength) {
+			filePointer = newLength;
+		}
+	}
+	
+	public int read() throws IOException {
+		scratch.clear();
+		scratch.limit(1);
+		if (channel.read(scratch, filePointer) < 1) {
+			return -1;
+		}
+		filePointer++;
+		return scratch.get(0) & 0xFF;
+	}
+	
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+	
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int sizeRead = channel.read(ByteBuffer.wrap(b, off, len), filePointer);
+		if (sizeRead > 0) {
+			filePointer += sizeRead;
+		}
+		return sizeRead;
+	}
+	
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+	
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(b, off, len);
+		while (data.hasRemaining()) {
+			int sizeRead = channel.read(data, filePointer);
+			if (sizeRead < 0) {
+				throw new EOFException();
+			}
+			filePointer += sizeRead;
+		}
+	}
+	
+	@Override
+	public int skipBytes(int n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		long newPosition = Math.min(filePointer + n, length());
+		int sizeSkipped = (int) Math.max(newPosition - filePointer, 0);
+		filePointer += sizeSkipped;
+		return sizeSkipped;
+	}
+	
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+	
+	@Override
+	public byte readByte() throws IOException {
+		int b = read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return (byte) b;
+	}
+	
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+	
+	@Override
+	public short readShort() throws IOException {
+		return readScratch(2).getShort(0);
+	}
+	
+	@Override
+	public int readUnsignedShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+	
+	@Override
+	public char readChar() throws IOException {
+		return readScratch(2).getChar(0);
+	}
+	
+	@Override
+	public int readInt() throws IOException {
+		return readScratch(4).getInt(0);
+	}
+	
+	@Override
+	public long readLong() throws IOException {
+		return readScratch(8).getLong(0);
+	}
+	
+	@Override
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+	
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+	
+	@Override
+	public String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c = -1;
+		boolean eol = false;
+		while (!eol) {
+			switch (c = read()) {
+			case -1:
+			case '\n':
+				eol = true;
+				break;
+			case '\r':
+				eol = true;
+				long current = filePointer;
+				if (read() != '\n') {
+					filePointer = current;
+				}
+				break;
+			default:
+				line.append((char) c);
+				break;
+			}
+		}
+		if (c == -1 && line.length() == 0) {
+			return null;
+		}
+		return line.toString();
+	}
+	
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		scratch.clear();
+		scratch.put((byte) b);
+		writeScratch();
+	}
+	
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureWriteable();
+		ByteBuffer data = ByteBuffer.wrap(b, off, len);
+		while (data.hasRemaining()) {
+			filePointer += channel.write(data, filePointer);
+		}
+	}
+	
+	@Override
+	public void writeBoolean(boolean v) throws IOException {
+		write(v ? 1 : 0);
+	}
+	
+	@Override
+	public void writeByte(int v) throws IOException {
+		write(v);
+	}
+	
+	@Override
+	public void writeShort(int v) throws IOException {
+		scratch.clear();
+		scratch.putShort((short) v);
+		writeScratch();
+	}
+	
+	@Override
+	public void writeChar(int v) throws IOException {
+		scratch.clear();
+		scratch.putChar((char) v);
+		writeScratch();
+	}
+	
+	@Override
+	public void writeInt(int v) throws IOException {
+		scratch.clear();
+		scratch.putInt(v);
+		writeScratch();
+	}
+	
+	@Override
+	public void writeLong(long v) throws IOException {
+		scratch.clear();
+		scratch.putLong(v);
+		writeScratch();
+	}
+	
+	@Override
+	public void writeFloat(float v) throws IOException {
+		writeInt(Float.floatToIntBits(v));
+	}
+	
+	@Override
+	public void writeDouble(double v) throws IOException {
+		writeLong(Double.doubleToLongBits(v));
+	}
+	
+	@Override
+	public void writeBytes(String s) throws IOException {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		write(bytes);
+	}
+	
+	@Override
+	public void writeChars(String s) throws IOException {
+		ByteBuffer chars = ByteBuffer.allocate(s.length() * 2);
+		for (int i = 0; i < s.length(); i++) {
+			chars.putChar(s.charAt(i));
+		}
+		write(chars.array());
+	}
+	
+	@Override
+	public void writeUTF(String str) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(str.length() + 2);
+		new DataOutputStream(bytes).writeUTF(str);
+		write(bytes.toByteArray());
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	private ByteBuffer readScratch(int len) throws IOException {
+		scratch.clear();
+		scratch.limit(len);
+		while (scratch.hasRemaining()) {
+			int sizeRead = channel.read(scratch, filePointer);
+			if (sizeRead < 0) {
+				throw new EOFException();
+			}
+			filePointer += sizeRead;
+		}
+		return scratch;
+	}
+	
+	private void writeScratch() throws IOException {
+		ensureWriteable();
+		scratch.flip();
+		while (scratch.hasRemaining()) {
+			filePointer += channel.write(scratch, filePointer);
+		}
+	}
+	
+	private void ensureWriteable() throws IOException {
+		if (!writeable) {
+			throw new IOException("This file was opened read only!");
+		}
+	}
+	
 }
@@ -25,9 +25,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
+import net.chroem.glowdisk.virtualutils.IOStatistics;
 import net.chroem.glowdisk.virtualutils.MemoryBackedVirtualDisk;
 import net.chroem.glowdisk.virtualutils.VirtualDisk;
 
@@ -44,14 +45,16 @@ public class Main {
 				System.out.println("Benchmarking storage-backed GlowFile...");
 				System.out.println("Completed in " + ((double) benchmark(nativeFile, glowFile2) / 1000.0) + "s");
 				
-				VirtualDisk disk = new MemoryBackedVirtualDisk(new File("/home/chroem/Desktop/Glowdisk/glowdisk.gldsk"), (int) (1024L * 1024L * 1024L * 1.5));
+				VirtualDisk disk = new MemoryBackedVirtualDisk(new File("/home/chroem/Desktop/Glowdisk/glowdisk.gldsk"), (long) (1024L * 1024L * 1024L * 1.5));
 				GlowFile memoryFile = new GlowFile("test.mkv");
 				glowFile2 = new GlowFile("test2.mkv");
 				initialize(memoryFile);
 				System.out.println("Benchmarking memory-backed GlowFile...");
+				IOStatistics before = disk.getMetrics().getStatistics();
 				System.out.println("Completed in " + ((double) benchmark(memoryFile, glowFile2) / 1000.0) + "s");
+				System.out.print(disk.getMetrics().getStatistics().since(before));
 				
-				transfer(memoryFile, new FileOutputStream(new File("/home/chroem/Desktop/methuselah.mkv")));
+				transfer(memoryFile, new FileOutputStream(new File("/home/chroem/Desktop/methuselah.mkv")).getChannel());
 				
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -73,12 +76,13 @@ public class Main {
 	public static void initialize(GlowFile file) {
 		try {
 			File interjection = new File("/home/chroem/Desktop/RequiemForMethuselah.mkv");
-			InputStream input = new FileInputStream(interjection);
-			OutputStream output = new GlowFileOutputStream(file);
-			byte[] bytes = new byte[4096];
-			int len;
-			while ( (len = input.read(bytes)) > 0) {
-				output.write(bytes, 0, len);
+			FileChannel input = new FileInputStream(interjection).getChannel();
+			GlowFileChannel output = new GlowFileChannel(file);
+			output.truncate(0);
+			long size = input.size();
+			long position = 0;
+			while (position < size) {
+				position += output.transferFrom(input, position, size - position);
 			}
 			input.close();
 			output.close();	
@@ -91,12 +95,13 @@ public class Main {
 		try {
 			long startTime = System.currentTimeMillis();
 			for (int i = 0; i < 20; i++) {
-				GlowFileInputStream input = new GlowFileInputStream(file1);
-				GlowFileOutputStream output = new GlowFileOutputStream(file2);
-				byte[] bytes = new byte[4096];
-				int len;
-				while ( (len = input.read(bytes)) > 0) {
-					output.write(bytes, 0, len);
+				GlowFileChannel input = new GlowFileChannel(file1);
+				GlowFileChannel output = new GlowFileChannel(file2);
+				output.truncate(0);
+				long size = input.size();
+				long position = 0;
+				while (position < size) {
+					position += input.transferTo(position, size - position, output);
 				}
 				input.close();
 				output.close();		
@@ -109,13 +114,13 @@ public class Main {
 	}
 
 	
-	public static void transfer(GlowFile file1, OutputStream output) {
+	public static void transfer(GlowFile file1, WritableByteChannel output) {
 		try{
-				GlowFileInputStream input = new GlowFileInputStream(file1);
-				byte[] bytes = new byte[4096];
-				int len = 0;
-				while ((len = input.read(bytes)) > 0) {
-					output.write(bytes, 0, len);	
+				GlowFileChannel input = new GlowFileChannel(file1);
+				long size = input.size();
+				long position = 0;
+				while (position < size) {
+					position += input.transferTo(position, size - position, output);
 				}
 				input.close();
 				output.close();	
@@ -20,73 +20,112 @@
 
 package net.chroem.glowdisk.virtualutils;
 
-import java.util.ArrayList;
-
 import com.google.gson.annotations.Expose;
 
 
 
 public class AllocatedSpaceMarker {
-	@Expose int beginIndex;
-	@Expose int endIndex;
+	@Expose long beginIndex;
+	@Expose long endIndex;
+	
+	//where this segment starts within the file's data
+	long fileOffset;
 	
-	//boolean flexible;
+	//only the last segment of a file can grow into the space that follows it
+	volatile boolean flexible;
 	
 	public final VirtualFile parent;
 	public  FreeSpaceMarker followingUnallocatedZone;
 	
-	private ArrayList<FreeSpaceMarker> emptySpace;
+	//set when this segment is a slot in one of the slab allocator's pages, which have no free space behind them
+	protected final SlabAllocator.SlabPage page;
 	
 	//unused
 	private AllocatedSpaceMarker(){
 		this.parent = null;
 		this.followingUnallocatedZone = null;
+		this.page = null;
 	}
 	
-	private AllocatedSpaceMarker(int beginIndex, int endIndex, VirtualFile parent) {
+	private AllocatedSpaceMarker(long beginIndex, long endIndex, VirtualFile parent) {
+		this(beginIndex, endIndex, parent, null);
+	}
+	
+	protected AllocatedSpaceMarker(long beginIndex, long endIndex, VirtualFile parent, SlabAllocator.SlabPage page) {
 		this.beginIndex = beginIndex;
 		this.endIndex = endIndex;
 		this.parent = parent;
-		emptySpace = parent.getContainingDisk().emptySpace;
+		this.page = page;
 	}
 	
 	//will try to make an allocated zone of the desired size, but not necessarily
 	//returns the size of the zone actually allocated
-	protected static int addNewAllocatedZoneToParent(VirtualFile parent, int desiredSize) {
+	protected static long addNewAllocatedZoneToParent(VirtualFile parent, long desiredSize) {
 		VirtualDisk disk = parent.getContainingDisk();
 		
 		boolean ignoreReservedSpace =  ((float) disk.getReservedSpace() / (float) disk.getFreeSpace()) > .9; //more than 90% of free space is reserved
-		FreeSpaceMarker best = null;
-		int size = 0;
-		int beginIndex;
-		if (ignoreReservedSpace) {
-			//find largest unallocated region
-			for (FreeSpaceMarker marker : disk.emptySpace) {
-				if (marker.getSize() > size) {
-					best = marker;
-					size = marker.getSize();
-				}
-			}
-			beginIndex = best.leftBound + 1;
-		} else {
-			//find largest unreserved region
-			for (FreeSpaceMarker marker : disk.emptySpace) {
-				if (marker.getUnreserved() > size) {
-					best = marker;
-					size = marker.getUnreserved();
+		long allocatedSize = addNewAllocatedZoneToParent(parent, desiredSize, ignoreReservedSpace);
+		//the reserved space total is only an estimate, so fall back on the reserved space rather than fail
+		if (allocatedSize < 1 && !ignoreReservedSpace) {
+			allocatedSize = addNewAllocatedZoneToParent(parent, desiredSize, true);
+			ignoreReservedSpace = true;
+		}
+		if (ignoreReservedSpace && allocatedSize > 0) {
+			disk.reservedSpaceFallbacks.incrementAndGet();
+		}
+		return allocatedSize;
+	}
+	
+	private static long addNewAllocatedZoneToParent(VirtualFile parent, long desiredSize, boolean ignoreReservedSpace) {
+		VirtualDisk disk = parent.getContainingDisk();
+		AllocationGroup[] groups = disk.getAllocationGroups();
+		int preferredGroup = disk.getPreferredGroup(parent);
+		
+		//first look for a group that can hold the whole zone without waiting on another writer
+		for (int i = 0; i < groups.length; i++) {
+			AllocationGroup group = groups[(preferredGroup + i) % groups.length];
+			if (group.getFreeSpace() >= desiredSize && group.lock.tryLock()) {
+				try {
+					FreeSpaceMarker best = group.findLargest(ignoreReservedSpace);
+					if (best != null && getAvailableSize(best, ignoreReservedSpace) >= desiredSize) {
+						return allocateFrom(parent, group, best, desiredSize, ignoreReservedSpace);
+					}
+				} finally {
+					group.lock.unlock();
 				}
 			}
-			beginIndex = best.leftBound + 1 + best.getReserved();
 		}
 		
-		int newSegmentSize = desiredSize;
-		if (best.rightBound - beginIndex < newSegmentSize) {
-			newSegmentSize = best.rightBound - beginIndex;
+		//otherwise settle for whatever the first group with room has left
+		for (int i = 0; i < groups.length; i++) {
+			AllocationGroup group = groups[(preferredGroup + i) % groups.length];
+			group.lock.lock();
+			try {
+				FreeSpaceMarker best = group.findLargest(ignoreReservedSpace);
+				if (best != null && getAvailableSize(best, ignoreReservedSpace) > 0) {
+					return allocateFrom(parent, group, best, desiredSize, ignoreReservedSpace);
+				}
+			} finally {
+				group.lock.unlock();
+			}
 		}
+		return 0;
+	}
+	
+	//a new segment has to stop short of the marker's right bound, so that the marker can still be split around it
+	private static long getAvailableSize(FreeSpaceMarker marker, boolean ignoreReservedSpace) {
+		long beginIndex = (ignoreReservedSpace) ? marker.leftBound + 1 : marker.leftBound + 1 + marker.getReserved();
+		return marker.rightBound - beginIndex - 1;
+	}
+	
+	//only call while holding the group's lock
+	private static long allocateFrom(VirtualFile parent, AllocationGroup group, FreeSpaceMarker best, long desiredSize, boolean ignoreReservedSpace) {
+		long beginIndex = (ignoreReservedSpace) ? best.leftBound + 1 : best.leftBound + 1 + best.getReserved();
+		long newSegmentSize = Math.min(desiredSize, best.rightBound - beginIndex - 1);
 		AllocatedSpaceMarker allocatedMarker = new AllocatedSpaceMarker(beginIndex, beginIndex + newSegmentSize, parent);
-		FreeSpaceMarker marker = VirtualDisk.allocateSpaceWithReserved(beginIndex, beginIndex + newSegmentSize, allocatedMarker);
+		FreeSpaceMarker marker = group.allocate(beginIndex, beginIndex + newSegmentSize, allocatedMarker);
 		allocatedMarker.setFollowingUnallocatedZone(marker);
-		parent.dataSegments.add(allocatedMarker);
+		parent.appendSegment(allocatedMarker);
 		return allocatedMarker.getSize();
 	}
 	
@@ -96,59 +135,134 @@ public class AllocatedSpaceMarker {
 	 * This method ignores any zone markers and forcefully allocates the provided indexes.  
 	 * USE WITH EXTREME CAUTION!!!  
 	 */
-	protected static void forceAddNewAllocatedZoneToParent(VirtualFile parent, int beginIndex, int endIndex) {
+	protected static void forceAddNewAllocatedZoneToParent(VirtualFile parent, long beginIndex, long endIndex) {
+		AllocatedSpaceMarker slot = parent.getContainingDisk().getSlabAllocator().claimSlot(parent, beginIndex, endIndex);
+		if (slot != null) {
+			parent.appendSegment(slot);
+			return;
+		}
 		AllocatedSpaceMarker allocatedMarker = new AllocatedSpaceMarker(beginIndex, endIndex, parent);
-		FreeSpaceMarker marker = VirtualDisk.allocateSpaceWithReserved(beginIndex, endIndex, allocatedMarker);
-		allocatedMarker.setFollowingUnallocatedZone(marker);
-		parent.dataSegments.add(allocatedMarker);
+		if (!parent.getContainingDisk().deferClaim(allocatedMarker)) {
+			FreeSpaceMarker marker = VirtualDisk.allocateSpaceWithReserved(beginIndex, endIndex, allocatedMarker);
+			allocatedMarker.setFollowingUnallocatedZone(marker);
+		}
+		parent.appendSegment(allocatedMarker);
 	}
 
-	protected int getSize() {
+	protected long getSize() {
 		return endIndex - beginIndex;
 	}
 	
+	//hands this segment's space over to the end of another file without ever freeing it, only call while holding the group's lock
+	protected AllocatedSpaceMarker transferTo(VirtualFile file) {
+		AllocatedSpaceMarker marker = new AllocatedSpaceMarker(beginIndex, endIndex, file);
+		marker.setFollowingUnallocatedZone(followingUnallocatedZone);
+		followingUnallocatedZone.precedingDataSegment = marker;
+		this.parent.removeSegment(this);
+		file.appendSegment(marker);
+		return marker;
+	}
+	
+	//whether deallocate can give this segment back, only call while holding the group's lock
+	protected boolean isReleasable() {
+		return isSlot() || (followingUnallocatedZone != null && followingUnallocatedZone.leftBound - 1 == endIndex);
+	}
+	
 	protected void setFollowingUnallocatedZone(FreeSpaceMarker marker) {
 		this.followingUnallocatedZone = marker;
 	}
+	
+	protected boolean isSlot() {
+		return this.page != null;
+	}
+	
+	//how far this segment can grow without moving
+	protected long getCapacity() {
+		return (isSlot()) ? page.slotSize : Long.MAX_VALUE;
+	}
 
 	
 	protected boolean deallocate() {
-		int index = emptySpace.indexOf(followingUnallocatedZone);
-		FreeSpaceMarker leftMarker = emptySpace.get(index - 1);
-		if (leftMarker.rightBound + 1 == beginIndex && followingUnallocatedZone.leftBound - 1 == endIndex) {
-			emptySpace.remove(index);
-			leftMarker.rightBound = followingUnallocatedZone.rightBound;
-			this.parent.dataSegments.remove(this);
+		if (isSlot()) {
+			//a manifest written in between can only lose the slot, never hand it out twice
+			this.parent.removeSegment(this);
+			parent.getContainingDisk().getSlabAllocator().releaseSlot(this);
 			return true;
 		}
-		return false;
+		AllocationGroup group = followingUnallocatedZone.group;
+		group.lock.lock();
+		try {
+			if (followingUnallocatedZone.leftBound - 1 != endIndex) {
+				return false;
+			}
+			FreeSpaceMarker leftMarker = group.getPrecedingMarker(followingUnallocatedZone);
+			if (leftMarker != null && leftMarker.rightBound + 1 == beginIndex) {
+				group.removeMarker(followingUnallocatedZone);
+				group.setBounds(leftMarker, leftMarker.leftBound, followingUnallocatedZone.rightBound);
+			} else {
+				//the space to the left belongs to another group, so hand this segment to the one that follows it
+				group.setBounds(followingUnallocatedZone, beginIndex - 1, followingUnallocatedZone.rightBound);
+			}
+			//inside the lock, so that the free space written to the manifest always agrees with the tree
+			this.parent.removeSegment(this);
+		} finally {
+			group.lock.unlock();
+		}
+		return true;
 	}
 	
 	//extend a data record segment
-	protected boolean grow(int sizeToGrow) {
-		///////////////////////////////////////////////////////////////////
-		if (followingUnallocatedZone.leftBound == endIndex + 1 && sizeToGrow < followingUnallocatedZone.getSize()) {
-			followingUnallocatedZone.leftBound += sizeToGrow;
+	protected boolean grow(long sizeToGrow) {
+		if (isSlot()) {
+			if (getSize() + sizeToGrow > page.slotSize) {
+				return false;
+			}
 			this.endIndex += sizeToGrow;
+			parent.adjustAllocatedSize(this, sizeToGrow);
 			return true;
 		}
-		return false;
-		///////////////////////////////////////////////////////////////////
+		AllocationGroup group = followingUnallocatedZone.group;
+		group.lock.lock();
+		try {
+			if (followingUnallocatedZone.leftBound == endIndex + 1 && sizeToGrow < followingUnallocatedZone.getSize()) {
+				group.setBounds(followingUnallocatedZone, followingUnallocatedZone.leftBound + sizeToGrow, followingUnallocatedZone.rightBound);
+				this.endIndex += sizeToGrow;
+				parent.adjustAllocatedSize(this, sizeToGrow);
+				return true;
+			}
+			return false;
+		} finally {
+			group.lock.unlock();
+		}
 	}
 	
 	//shorten a data record segment
-	protected boolean shrink(int sizeToShrink) {
-		FreeSpaceMarker leftMarker = emptySpace.get(emptySpace.indexOf(followingUnallocatedZone) - 1);
-		if (followingUnallocatedZone.leftBound == endIndex + 1 && followingUnallocatedZone.leftBound - leftMarker.rightBound > sizeToShrink) {
-			followingUnallocatedZone.leftBound -= sizeToShrink;
+	protected boolean shrink(long sizeToShrink) {
+		if (isSlot()) {
+			if (sizeToShrink > getSize()) {
+				return false;
+			}
 			this.endIndex -= sizeToShrink;
+			parent.adjustAllocatedSize(this, -sizeToShrink);
 			return true;
 		}
-		return false;
+		AllocationGroup group = followingUnallocatedZone.group;
+		group.lock.lock();
+		try {
+			if (followingUnallocatedZone.leftBound == endIndex + 1 && sizeToShrink <= getSize()) {
+				group.setBounds(followingUnallocatedZone, followingUnallocatedZone.leftBound - sizeToShrink, followingUnallocatedZone.rightBound);
+				this.endIndex -= sizeToShrink;
+				parent.adjustAllocatedSize(this, -sizeToShrink);
+				return true;
+			}
+			return false;
+		} finally {
+			group.lock.unlock();
+		}
 	}
 	
 	public boolean isFlexible() {
-		return parent.getEndMarker() == this;
+		return this.flexible;
 	}
 	
 	
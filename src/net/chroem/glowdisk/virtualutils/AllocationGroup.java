@@ -0,0 +1,175 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One stripe of the disk's free space.  Every FreeSpaceMarker belongs to exactly one group, and a group's
+ * markers may only be read or changed while holding its lock, so writers working in different groups
+ * never wait on each other.  The free space total is kept up to date so it can be read without locking.
+ * The markers are indexed both by offset and by size, so finding, splitting and coalescing them is O(log n).
+ * Their bounds must only be changed through this class, since both indexes are keyed on them.
+ */
+public class AllocationGroup {
+	
+	private static final Comparator<FreeSpaceMarker> SIZE_ORDER = new Comparator<FreeSpaceMarker>() {
+		
+		@Override
+		public int compare(FreeSpaceMarker first, FreeSpaceMarker second) {
+			int comparison = Long.compare(first.getSize(), second.getSize());
+			return (comparison != 0) ? comparison : Long.compare(first.leftBound, second.leftBound);
+		}
+		
+	};
+	
+	protected final int index;
+	protected final ReentrantLock lock = new ReentrantLock();
+	
+	private final TreeMap<Long, FreeSpaceMarker> markersByOffset = new TreeMap<Long, FreeSpaceMarker>();
+	private final TreeSet<FreeSpaceMarker> markersBySize = new TreeSet<FreeSpaceMarker>(SIZE_ORDER);
+	
+	private volatile long freeSpace = 0;
+	
+	protected AllocationGroup(int index) {
+		this.index = index;
+	}
+	
+	public long getFreeSpace() {
+		return this.freeSpace;
+	}
+	
+	//in order of offset
+	protected Collection<FreeSpaceMarker> getMarkers() {
+		return markersByOffset.values();
+	}
+	
+	protected int getMarkerCount() {
+		return markersByOffset.size();
+	}
+	
+	protected void addMarker(FreeSpaceMarker marker) {
+		markersByOffset.put(marker.leftBound, marker);
+		markersBySize.add(marker);
+		this.freeSpace += marker.getSize();
+	}
+	
+	protected void removeMarker(FreeSpaceMarker marker) {
+		markersByOffset.remove(marker.leftBound);
+		markersBySize.remove(marker);
+		this.freeSpace -= marker.getSize();
+	}
+	
+	protected void setBounds(FreeSpaceMarker marker, long leftBound, long rightBound) {
+		removeMarker(marker);
+		marker.leftBound = leftBound;
+		marker.rightBound = rightBound;
+		addMarker(marker);
+	}
+	
+	//the closest marker to the left of the given one, or null if it is the first in this group
+	protected FreeSpaceMarker getPrecedingMarker(FreeSpaceMarker marker) {
+		Map.Entry<Long, FreeSpaceMarker> entry = markersByOffset.lowerEntry(marker.leftBound);
+		return (entry == null) ? null : entry.getValue();
+	}
+	
+	//find the largest unallocated region, or the largest unreserved one
+	protected FreeSpaceMarker findLargest(boolean ignoreReservedSpace) {
+		if (markersBySize.isEmpty()) {
+			return null;
+		}
+		if (ignoreReservedSpace) {
+			return markersBySize.last();
+		}
+		//a marker can never have more unreserved space than its size, so stop once the sizes drop below the best found
+		FreeSpaceMarker best = null;
+		long size = 0;
+		for (FreeSpaceMarker marker : markersBySize.descendingSet()) {
+			if (marker.getSize() <= size) {
+				break;
+			}
+			long markerSize = marker.getUnreserved();
+			if (markerSize > size) {
+				best = marker;
+				size = markerSize;
+			}
+		}
+		return best;
+	}
+	
+	//splits the marker that contains the given indexes around them, returning the marker that now follows them
+	protected FreeSpaceMarker allocate(long startIndex, long endIndex, AllocatedSpaceMarker allocatedMarker) {
+		Map.Entry<Long, FreeSpaceMarker> entry = markersByOffset.lowerEntry(startIndex);
+		if (entry == null || entry.getValue().rightBound <= endIndex) {
+			return null;
+		}
+		FreeSpaceMarker marker = entry.getValue();
+		long oldRightBound = marker.rightBound;
+		setBounds(marker, marker.leftBound, startIndex - 1);
+		FreeSpaceMarker newMarker = new FreeSpaceMarker(endIndex + 1, oldRightBound, allocatedMarker, this);
+		addMarker(newMarker);
+		return newMarker;
+	}
+	
+	/**
+	 * Used while mounting a disk whose free space has to be worked out from its extents.  The segments must be in
+	 * order of offset, and are cut out of the group's only marker one after another without looking any of them up.
+	 * Returns the segments that do not fit, which overlap another or lie outside of the disk.
+	 */
+	protected List<AllocatedSpaceMarker> allocateSorted(List<AllocatedSpaceMarker> segments) {
+		if (markersByOffset.size() != 1) {
+			return segments;
+		}
+		List<AllocatedSpaceMarker> leftovers = new ArrayList<AllocatedSpaceMarker>();
+		FreeSpaceMarker marker = markersByOffset.firstEntry().getValue();
+		removeMarker(marker);
+		for (AllocatedSpaceMarker segment : segments) {
+			if (marker.leftBound >= segment.beginIndex || marker.rightBound <= segment.endIndex) {
+				leftovers.add(segment);
+				continue;
+			}
+			FreeSpaceMarker newMarker = new FreeSpaceMarker(segment.endIndex + 1, marker.rightBound, segment, this);
+			marker.rightBound = segment.beginIndex - 1;
+			addMarker(marker);
+			segment.setFollowingUnallocatedZone(newMarker);
+			marker = newMarker;
+		}
+		addMarker(marker);
+		return leftovers;
+	}
+	
+	//used for extents that were already left out of the free space read from the manifest, returns null if no marker follows them
+	protected FreeSpaceMarker attach(long endIndex, AllocatedSpaceMarker allocatedMarker) {
+		FreeSpaceMarker marker = markersByOffset.get(endIndex + 1);
+		if (marker != null) {
+			marker.precedingDataSegment = allocatedMarker;
+		}
+		return marker;
+	}
+	
+}
@@ -0,0 +1,66 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+/**
+ * The allocator statistics of a mounted disk as seen through JMX.  See VirtualDisk.registerMBeans and
+ * AllocatorStatistics, which describes each attribute.
+ */
+public interface AllocatorMXBean {
+
+	public int getHoleCount();
+
+	public long getFreeSpace();
+
+	public long getLargestHole();
+
+	public long getReservedSpace();
+
+	public long getUnreservedSpace();
+
+	public long getLargestUnreservedRun();
+
+	public double getFreeSpaceFragmentation();
+
+	public long[] getHoleSizeHistogram();
+
+	public long getFileCount();
+
+	public long getExtentCount();
+
+	public long getFragmentedFiles();
+
+	public long getMostExtents();
+
+	public long[] getExtentsPerFileHistogram();
+
+	public long getUnloadedDirectories();
+
+	public long getAllocations();
+
+	public long getAllocationRetries();
+
+	public long getAllocationFailures();
+
+	public long getReservedSpaceFallbacks();
+
+}
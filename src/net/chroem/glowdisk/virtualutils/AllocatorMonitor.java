@@ -0,0 +1,137 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+/**
+ * Serves the allocator statistics of a disk to JMX.  A snapshot is taken at most once a second, since taking one
+ * locks every allocation group in turn and walks the loaded files, and a JMX client reads the attributes one by one.
+ */
+public class AllocatorMonitor implements AllocatorMXBean {
+
+	private static final long SNAPSHOT_INTERVAL = 1000;
+
+	private final VirtualDisk disk;
+	private AllocatorStatistics statistics;
+
+	protected AllocatorMonitor(VirtualDisk disk) {
+		this.disk = disk;
+	}
+
+	private synchronized AllocatorStatistics getStatistics() {
+		if (statistics == null || System.currentTimeMillis() - statistics.getTimestamp() >= SNAPSHOT_INTERVAL) {
+			this.statistics = disk.getAllocatorStatistics();
+		}
+		return this.statistics;
+	}
+
+	@Override
+	public int getHoleCount() {
+		return getStatistics().getHoleCount();
+	}
+
+	@Override
+	public long getFreeSpace() {
+		return getStatistics().getFreeSpace();
+	}
+
+	@Override
+	public long getLargestHole() {
+		return getStatistics().getLargestHole();
+	}
+
+	@Override
+	public long getReservedSpace() {
+		return getStatistics().getReservedSpace();
+	}
+
+	@Override
+	public long getUnreservedSpace() {
+		return getStatistics().getUnreservedSpace();
+	}
+
+	@Override
+	public long getLargestUnreservedRun() {
+		return getStatistics().getLargestUnreservedRun();
+	}
+
+	@Override
+	public double getFreeSpaceFragmentation() {
+		return getStatistics().getFreeSpaceFragmentation();
+	}
+
+	@Override
+	public long[] getHoleSizeHistogram() {
+		return getStatistics().getHoleSizeHistogram();
+	}
+
+	@Override
+	public long getFileCount() {
+		return getStatistics().getFileCount();
+	}
+
+	@Override
+	public long getExtentCount() {
+		return getStatistics().getExtentCount();
+	}
+
+	@Override
+	public long getFragmentedFiles() {
+		return getStatistics().getFragmentedFiles();
+	}
+
+	@Override
+	public long getMostExtents() {
+		return getStatistics().getMostExtents();
+	}
+
+	@Override
+	public long[] getExtentsPerFileHistogram() {
+		return getStatistics().getExtentsPerFileHistogram();
+	}
+
+	@Override
+	public long getUnloadedDirectories() {
+		return getStatistics().getUnloadedDirectories();
+	}
+
+	//the counters are cheap to read, so they are never stale
+	@Override
+	public long getAllocations() {
+		return disk.allocations.get();
+	}
+
+	@Override
+	public long getAllocationRetries() {
+		return disk.allocationRetries.get();
+	}
+
+	@Override
+	public long getAllocationFailures() {
+		return disk.allocationFailures.get();
+	}
+
+	@Override
+	public long getReservedSpaceFallbacks() {
+		return disk.reservedSpaceFallbacks.get();
+	}
+
+}
@@ -0,0 +1,217 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A snapshot of how fragmented a disk is, taken by VirtualDisk.getAllocatorStatistics.  Each allocation group is
+ * read under its own lock in turn, so the free space is consistent within a group but not across all of them.  Only
+ * directories that have already been loaded are counted, since loading the rest just to count their extents would
+ * defeat loading them lazily.
+ *
+ * The histograms count powers of two: entry i counts the holes of at least 2^i bytes and less than 2^(i + 1), or the
+ * files with at least 2^i extents and less than 2^(i + 1).
+ */
+public class AllocatorStatistics {
+
+	private final long timestamp = System.currentTimeMillis();
+
+	private int holeCount = 0;
+	private long freeSpace = 0;
+	private long largestHole = 0;
+	private long reservedSpace = 0;
+	private long largestUnreservedRun = 0;
+	private long[] holeSizes = new long[64];
+
+	private long fileCount = 0;
+	private long extentCount = 0;
+	private long fragmentedFiles = 0;
+	private long mostExtents = 0;
+	private long[] extentsPerFile = new long[32];
+	private long unloadedDirectories = 0;
+
+	private final long allocations;
+	private final long allocationRetries;
+	private final long allocationFailures;
+	private final long reservedSpaceFallbacks;
+
+	protected AllocatorStatistics(VirtualDisk disk) {
+		this.allocations = disk.allocations.get();
+		this.allocationRetries = disk.allocationRetries.get();
+		this.allocationFailures = disk.allocationFailures.get();
+		this.reservedSpaceFallbacks = disk.reservedSpaceFallbacks.get();
+		for (AllocationGroup group : disk.getAllocationGroups()) {
+			group.lock.lock();
+			try {
+				for (FreeSpaceMarker marker : group.getMarkers()) {
+					countHole(marker);
+				}
+			} finally {
+				group.lock.unlock();
+			}
+		}
+		countFiles(disk.getRoot());
+		this.holeSizes = trim(holeSizes);
+		this.extentsPerFile = trim(extentsPerFile);
+	}
+
+	private void countHole(FreeSpaceMarker marker) {
+		long size = marker.getSize();
+		long reserved = marker.getReserved();
+		holeCount++;
+		freeSpace += size;
+		reservedSpace += reserved;
+		largestHole = Math.max(largestHole, size);
+		largestUnreservedRun = Math.max(largestUnreservedRun, size - reserved);
+		holeSizes[log2(size)]++;
+	}
+
+	private void countFiles(VirtualFile root) {
+		ArrayDeque<VirtualFile> directories = new ArrayDeque<VirtualFile>();
+		directories.push(root);
+		while (!directories.isEmpty()) {
+			VirtualFile directory = directories.pop();
+			if (!directory.isLoaded()) {
+				unloadedDirectories++;
+				continue;
+			}
+			for (VirtualFile file : directory.getLoadedChildren()) {
+				if (file.isDirectory()) {
+					directories.push(file);
+					continue;
+				}
+				int extents = file.dataSegments.size();
+				fileCount++;
+				if (extents == 0) {
+					continue;
+				}
+				extentCount += extents;
+				mostExtents = Math.max(mostExtents, extents);
+				if (extents > 1) {
+					fragmentedFiles++;
+				}
+				extentsPerFile[log2(extents)]++;
+			}
+		}
+	}
+
+	//zero is counted with one
+	private static int log2(long value) {
+		return (value < 2) ? 0 : 63 - Long.numberOfLeadingZeros(value);
+	}
+
+	//cuts off the empty entries at the end
+	private static long[] trim(long[] histogram) {
+		int length = histogram.length;
+		while (length > 0 && histogram[length - 1] == 0) {
+			length--;
+		}
+		return Arrays.copyOf(histogram, length);
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getHoleCount() {
+		return holeCount;
+	}
+
+	public long getFreeSpace() {
+		return freeSpace;
+	}
+
+	public long getLargestHole() {
+		return largestHole;
+	}
+
+	//the room kept free behind files for them to grow into, added up hole by hole
+	public long getReservedSpace() {
+		return reservedSpace;
+	}
+
+	public long getUnreservedSpace() {
+		return freeSpace - reservedSpace;
+	}
+
+	//the largest file that can be allocated in one piece without taking another file's reserved space
+	public long getLargestUnreservedRun() {
+		return largestUnreservedRun;
+	}
+
+	//how much of the free space lies outside of the largest hole, from 0 for none to nearly 1 for all of it
+	public double getFreeSpaceFragmentation() {
+		return (freeSpace == 0) ? 0 : 1.0 - (double) largestHole / (double) freeSpace;
+	}
+
+	public long[] getHoleSizeHistogram() {
+		return holeSizes.clone();
+	}
+
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	public long getExtentCount() {
+		return extentCount;
+	}
+
+	//files with more than one extent
+	public long getFragmentedFiles() {
+		return fragmentedFiles;
+	}
+
+	public long getMostExtents() {
+		return mostExtents;
+	}
+
+	public long[] getExtentsPerFileHistogram() {
+		return extentsPerFile.clone();
+	}
+
+	public long getUnloadedDirectories() {
+		return unloadedDirectories;
+	}
+
+	//the number of times a file was grown since the disk was mounted
+	public long getAllocations() {
+		return allocations;
+	}
+
+	//the number of times growing a file had to go on to another extent because it got less room than it asked for
+	public long getAllocationRetries() {
+		return allocationRetries;
+	}
+
+	//the number of times a file could not be grown as far as it asked to
+	public long getAllocationFailures() {
+		return allocationFailures;
+	}
+
+	//the number of times an allocation had to take room reserved behind other files
+	public long getReservedSpaceFallbacks() {
+		return reservedSpaceFallbacks;
+	}
+
+}
@@ -0,0 +1,196 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A chain of MappedByteBuffers addressed as one contiguous region with long offsets.
+ * A single MappedByteBuffer can only address 2GB, so the disk file is mapped in 1GB chunks.
+ * The byte array transfers move the position of the chunks they use, so every thread or stream
+ * should work on its own duplicate().  Everything else only uses absolute indexes.
+ */
+public class ChainedMappedBuffer {
+
+	protected static final int CHUNK_SHIFT = 30;
+	protected static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final MappedByteBuffer[] chunks;
+	private final long capacity;
+
+	public ChainedMappedBuffer(FileChannel channel, long capacity) throws IOException {
+		if (capacity < 1) throw new IllegalArgumentException("Cannot map an empty region!");
+		this.capacity = capacity;
+		this.chunks = new MappedByteBuffer[(int) ((capacity + CHUNK_MASK) >>> CHUNK_SHIFT)];
+		for (int i = 0; i < chunks.length; i++) {
+			long offset = (long) i << CHUNK_SHIFT;
+			chunks[i] = channel.map(MapMode.READ_WRITE, offset, Math.min(CHUNK_SIZE, capacity - offset));
+		}
+	}
+
+	private ChainedMappedBuffer(MappedByteBuffer[] chunks, long capacity) {
+		this.chunks = chunks;
+		this.capacity = capacity;
+	}
+
+	//shares the mapped memory, but has its own chunk positions
+	public ChainedMappedBuffer duplicate() {
+		MappedByteBuffer[] duplicates = new MappedByteBuffer[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			duplicates[i] = (MappedByteBuffer) chunks[i].duplicate();
+		}
+		return new ChainedMappedBuffer(duplicates, capacity);
+	}
+
+	public long capacity() {
+		return this.capacity;
+	}
+
+	public byte get(long index) {
+		return chunks[chunkNumber(index)].get(chunkOffset(index));
+	}
+
+	public void put(long index, byte b) {
+		chunks[chunkNumber(index)].put(chunkOffset(index), b);
+	}
+
+	//copies straight out of each chunk, splitting the transfer wherever it crosses a chunk boundary
+	public void get(long index, byte[] dst, int off, int len) {
+		checkBounds(index, len);
+		while (len > 0) {
+			MappedByteBuffer chunk = chunks[chunkNumber(index)];
+			int chunkOffset = chunkOffset(index);
+			int length = Math.min(len, chunk.capacity() - chunkOffset);
+			chunk.position(chunkOffset);
+			chunk.get(dst, off, length);
+			index += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	public void put(long index, byte[] src, int off, int len) {
+		checkBounds(index, len);
+		while (len > 0) {
+			MappedByteBuffer chunk = chunks[chunkNumber(index)];
+			int chunkOffset = chunkOffset(index);
+			int length = Math.min(len, chunk.capacity() - chunkOffset);
+			chunk.position(chunkOffset);
+			chunk.put(src, off, length);
+			index += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	//the ByteBuffer transfers work on duplicates so that they never move the position of the shared chunks
+	public void get(long index, ByteBuffer dst, int len) {
+		checkBounds(index, len);
+		while (len > 0) {
+			ByteBuffer chunk = chunks[chunkNumber(index)].duplicate();
+			int chunkOffset = chunkOffset(index);
+			int length = Math.min(len, chunk.capacity() - chunkOffset);
+			chunk.limit(chunkOffset + length);
+			chunk.position(chunkOffset);
+			dst.put(chunk);
+			index += length;
+			len -= length;
+		}
+	}
+
+	public void put(long index, ByteBuffer src, int len) {
+		checkBounds(index, len);
+		while (len > 0) {
+			ByteBuffer chunk = chunks[chunkNumber(index)].duplicate();
+			int chunkOffset = chunkOffset(index);
+			int length = Math.min(len, chunk.capacity() - chunkOffset);
+			ByteBuffer source = src.duplicate();
+			source.limit(source.position() + length);
+			chunk.position(chunkOffset);
+			chunk.put(source);
+			src.position(src.position() + length);
+			index += length;
+			len -= length;
+		}
+	}
+
+	//returns a view of up to len bytes starting at index, cut short wherever the chunk ends
+	public ByteBuffer slice(long index, long len) {
+		checkBounds(index, 0);
+		ByteBuffer chunk = chunks[chunkNumber(index)].duplicate();
+		int chunkOffset = chunkOffset(index);
+		chunk.limit((int) Math.min(chunk.capacity(), chunkOffset + len));
+		chunk.position(chunkOffset);
+		return chunk.slice();
+	}
+
+	public long getLong(long index) {
+		int chunkOffset = chunkOffset(index);
+		MappedByteBuffer chunk = chunks[chunkNumber(index)];
+		if (chunkOffset + 8 <= chunk.capacity()) {
+			return chunk.getLong(chunkOffset);
+		}
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (get(index + i) & 0xFF);
+		}
+		return value;
+	}
+
+	public void putLong(long index, long value) {
+		int chunkOffset = chunkOffset(index);
+		MappedByteBuffer chunk = chunks[chunkNumber(index)];
+		if (chunkOffset + 8 <= chunk.capacity()) {
+			chunk.putLong(chunkOffset, value);
+			return;
+		}
+		for (int i = 7; i > -1; i--) {
+			put(index + i, (byte) value);
+			value >>>= 8;
+		}
+	}
+
+	public void force() {
+		for (MappedByteBuffer chunk : chunks) {
+			chunk.force();
+		}
+	}
+
+	private void checkBounds(long index, int len) {
+		if (index < 0 || len < 0 || index + len > capacity) {
+			throw new IndexOutOfBoundsException("Cannot access " + len + " bytes at index " + index + " of a " + capacity + " byte region!");
+		}
+	}
+
+	private static int chunkNumber(long index) {
+		return (int) (index >>> CHUNK_SHIFT);
+	}
+
+	private static int chunkOffset(long index) {
+		return (int) (index & CHUNK_MASK);
+	}
+
+}
@@ -0,0 +1,285 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Moves files that are spread across several segments into one contiguous run each, in the background.
+ *
+ * A file is copied into a run of its own without holding its lock, so it can still be read and written, and the copy
+ * is only swapped in if nothing took the file's write lock while it was made.  The swap is short: under the file's
+ * write lock the old segments are released and the run takes their place.  It is then journaled like any other change
+ * to the file's extents.  The manifest's lock is only held to allocate the run and to swap it in, so checkpoints and
+ * journal appends are not held up by the copy.  In between, the run is one of the disk's detached files, which a
+ * checkpoint writes as free space.
+ *
+ * Copying is rate-limited by sleeping after each file for as long as copying it at the given rate would have taken.
+ * Files written to recently are skipped, since they are likely to change again before the copy is done.
+ */
+public class Compactor {
+
+	protected static final long DEFAULT_MAXIMUM_FILE_SIZE = 64L * 1024L * 1024L;
+	private static final long IDLE_TIME = 5000;
+	private static final long PASS_INTERVAL = 60L * 1000L;
+
+	private final VirtualDisk disk;
+	private final long bytesPerSecond;
+	private final long maximumFileSize;
+	private volatile boolean running = false;
+	private Thread thread;
+	//set by a pass that left files alone because they were written to recently
+	private boolean skippedBusyFiles;
+
+	private final AtomicLong compactedFiles = new AtomicLong();
+	private final AtomicLong movedBytes = new AtomicLong();
+	private final AtomicLong abortedFiles = new AtomicLong();
+
+	protected Compactor(VirtualDisk disk, long bytesPerSecond, long maximumFileSize) {
+		if (bytesPerSecond < 1) throw new IllegalArgumentException("The compaction rate must be positive!");
+		this.disk = disk;
+		this.bytesPerSecond = bytesPerSecond;
+		this.maximumFileSize = maximumFileSize;
+	}
+
+	public long getCompactedFiles() {
+		return compactedFiles.get();
+	}
+
+	public long getMovedBytes() {
+		return movedBytes.get();
+	}
+
+	//files whose copies were thrown away because the file changed or its segments could not be released
+	public long getAbortedFiles() {
+		return abortedFiles.get();
+	}
+
+	protected synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		this.running = true;
+		this.thread = new Thread("GlowDisk compactor") {
+
+			@Override
+			public void run() {
+				try {
+					while (running) {
+						if (compactTree() == 0) {
+							Thread.sleep(skippedBusyFiles ? IDLE_TIME : PASS_INTERVAL);
+						}
+					}
+				} catch (InterruptedException e) {
+					//stopped
+				}
+			}
+
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//waits for the file being compacted, if any, to be finished
+	protected synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		this.running = false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.thread = null;
+	}
+
+	//walks every loaded directory once, returns the number of files compacted
+	private int compactTree() throws InterruptedException {
+		int count = 0;
+		this.skippedBusyFiles = false;
+		ArrayDeque<VirtualFile> directories = new ArrayDeque<VirtualFile>();
+		directories.push(disk.getRoot());
+		while (!directories.isEmpty() && running) {
+			VirtualFile directory = directories.pop();
+			//a directory the mount skipped has not been written to since, so it is left as it is
+			if (!directory.isLoaded()) {
+				continue;
+			}
+			Iterator<VirtualFile> children = directory.getLoadedChildren().iterator();
+			while (children.hasNext() && running) {
+				VirtualFile file = children.next();
+				if (file.isDirectory()) {
+					directories.push(file);
+				} else if (!isFragmented(file)) {
+					continue;
+				} else if (System.currentTimeMillis() - file.getLastModified() < IDLE_TIME) {
+					this.skippedBusyFiles = true;
+				} else {
+					long size = file.getAllocatedSize();
+					if (compact(file)) {
+						count++;
+					}
+					Thread.sleep(Math.max(1, size * 1000L / bytesPerSecond));
+				}
+			}
+		}
+		return count;
+	}
+
+	//a file that outgrew its slot before files moved out of them can still start in one, and moving it frees the slot
+	private boolean isFragmented(VirtualFile file) {
+		return !file.deleted && !file.isDirectory() && file.hasData && file.dataSegments.size() > 1 && file.getAllocatedSize() <= maximumFileSize;
+	}
+
+	/**
+	 * Moves the file into a single run, and returns false if it did not need moving, no run was large enough or the
+	 * file changed while it was being copied.
+	 */
+	protected boolean compact(VirtualFile file) {
+		List<AllocatedSpaceMarker> segments;
+		long dataSize;
+		long size;
+		long writeCount;
+		Lock readLock = file.getReadLock();
+		readLock.lock();
+		try {
+			if (!isFragmented(file)) {
+				return false;
+			}
+			segments = new ArrayList<AllocatedSpaceMarker>(file.dataSegments);
+			dataSize = file.getDataSize();
+			size = file.getAllocatedSize();
+			writeCount = file.getWriteCount();
+		} finally {
+			readLock.unlock();
+		}
+
+		//the run is held by a hidden file until the swap, so that nothing written to the file can land in it
+		VirtualFile run = VirtualFile.generateHiddenFile();
+		Lock manifestLock = disk.manifest.getWriteLock();
+		manifestLock.lock();
+		try {
+			if (!allocate(run, size)) {
+				return false;
+			}
+			disk.detachedFiles.add(run);
+		} finally {
+			manifestLock.unlock();
+		}
+
+		AllocatedSpaceMarker target = run.getEndMarker();
+		for (AllocatedSpaceMarker segment : segments) {
+			long length = Math.min(segment.getSize(), dataSize - segment.fileOffset);
+			if (length > 0) {
+				disk.moveData(segment.beginIndex, target.beginIndex + segment.fileOffset, length);
+			}
+		}
+
+		boolean compacted;
+		manifestLock.lock();
+		try {
+			disk.detachedFiles.remove(run);
+			compacted = swap(file, run, segments, writeCount, size);
+			if (!compacted) {
+				abortedFiles.incrementAndGet();
+				release(run);
+			}
+		} finally {
+			manifestLock.unlock();
+		}
+		if (compacted) {
+			//the journal's monitor comes before the manifest's lock, so the change is logged once that is given up
+			disk.logChange(MetadataJournal.EXTENTS, file);
+		}
+		return compacted;
+	}
+
+	//only call while holding the manifest's lock
+	private static boolean allocate(VirtualFile run, long size) {
+		try {
+			if (run.changeSize(size) && run.dataSegments.size() == 1) {
+				return true;
+			}
+		} catch (IllegalArgumentException e) {
+			//no room
+		}
+		release(run);
+		return false;
+	}
+
+	//only call while holding the manifest's lock, returns false if the file changed or its segments could not be released
+	private boolean swap(VirtualFile file, VirtualFile run, List<AllocatedSpaceMarker> segments, long writeCount, long size) {
+		ArrayList<AllocatedSpaceMarker> slots = new ArrayList<AllocatedSpaceMarker>();
+		Lock writeLock = file.getWriteLock();
+		writeLock.lock();
+		try {
+			//taking the lock just now counted once
+			if (file.deleted || file.getWriteCount() != writeCount + 1) {
+				return false;
+			}
+			disk.lockAllocationGroups();
+			try {
+				for (AllocatedSpaceMarker segment : segments) {
+					if (!segment.isReleasable()) {
+						return false;
+					}
+				}
+				for (AllocatedSpaceMarker segment : segments) {
+					if (segment.isSlot()) {
+						file.removeSegment(segment);
+						slots.add(segment);
+					} else {
+						segment.deallocate();
+					}
+				}
+				run.getEndMarker().transferTo(file);
+			} finally {
+				disk.unlockAllocationGroups();
+			}
+			//the slab allocator's locks come before the groups'
+			for (AllocatedSpaceMarker slot : slots) {
+				disk.getSlabAllocator().releaseSlot(slot);
+			}
+			file.relocations++;
+			compactedFiles.incrementAndGet();
+			movedBytes.addAndGet(size);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private static void release(VirtualFile run) {
+		long allocatedSize = run.getAllocatedSize();
+		if (allocatedSize > 0) {
+			run.changeSize(-allocatedSize);
+		}
+	}
+
+}
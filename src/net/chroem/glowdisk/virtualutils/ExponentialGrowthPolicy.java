@@ -0,0 +1,64 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */package net.chroem.glowdisk.virtualutils;
+
+/**
+ * Grows a file by as much as it already holds, so that writing a file from scratch only grows it a logarithmic number
+ * of times, up to a maximum growth so that no single writer takes a large share of the disk.  A size hint is taken in
+ * one step.  The new size is rounded up to a size class: a power of two below the maximum growth, and a multiple of
+ * it above, so that files of similar sizes fit into the same holes.
+ */
+public class ExponentialGrowthPolicy implements GrowthPolicy {
+	
+	public static final long DEFAULT_MINIMUM_GROWTH = 512;
+	public static final long DEFAULT_MAXIMUM_GROWTH = 64L * 1024L * 1024L;
+	
+	private final long minimumGrowth;
+	private final long maximumGrowth;
+	
+	public ExponentialGrowthPolicy() {
+		this(DEFAULT_MINIMUM_GROWTH, DEFAULT_MAXIMUM_GROWTH);
+	}
+	
+	public ExponentialGrowthPolicy(long minimumGrowth, long maximumGrowth) {
+		if (minimumGrowth < 1 || maximumGrowth < minimumGrowth) throw new IllegalArgumentException("The minimum growth must be positive and no larger than the maximum growth!");
+		this.minimumGrowth = minimumGrowth;
+		this.maximumGrowth = maximumGrowth;
+	}
+	
+	@Override
+	public long getGrowthSize(VirtualFile file, long sizeHint) {
+		long allocatedSize = file.getAllocatedSize();
+		long growth;
+		if (sizeHint > allocatedSize) {
+			growth = sizeHint - allocatedSize;
+		} else {
+			growth = Math.min(Math.max(allocatedSize, minimumGrowth), maximumGrowth);
+		}
+		return getSizeClass(allocatedSize + growth) - allocatedSize;
+	}
+	
+	protected long getSizeClass(long size) {
+		if (size <= maximumGrowth) {
+			return Math.min(Math.max(minimumGrowth, Long.highestOneBit(size - 1) << 1), maximumGrowth);
+		}
+		return ((size + maximumGrowth - 1) / maximumGrowth) * maximumGrowth;
+	}
+	
+}
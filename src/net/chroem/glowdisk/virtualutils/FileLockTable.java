@@ -0,0 +1,126 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * The range locks held on one virtual file.  The disk only exists inside this JVM, so where a native lock is held by
+ * the process, this one is held by the channel it was taken through.  A lock that overlaps one held through another
+ * channel waits for it to be released, or is not taken at all by tryLock, while one that overlaps a lock held through
+ * the same channel throws, as it would for a native file.  Shared locks only wait on exclusive ones.
+ */
+public class FileLockTable {
+
+	//guarded by the table's monitor, which is waited on for a lock to be released
+	private final ArrayList<RangeLock> locks = new ArrayList<RangeLock>();
+
+	//returns null if the lock is held elsewhere and it was not to be waited for
+	protected synchronized FileLock lock(FileChannel channel, long position, long size, boolean shared, boolean wait) throws IOException {
+		RangeLock lock = new RangeLock(channel, position, size, shared);
+		boolean waited = false;
+		while (true) {
+			if (!channel.isOpen()) {
+				throw (waited) ? new AsynchronousCloseException() : new ClosedChannelException();
+			}
+			boolean blocked = false;
+			for (RangeLock held : locks) {
+				if (held.overlaps(position, size)) {
+					if (held.channel() == channel) {
+						throw new OverlappingFileLockException();
+					}
+					if (!shared || !held.isShared()) {
+						blocked = true;
+					}
+				}
+			}
+			if (!blocked) {
+				locks.add(lock);
+				return lock;
+			}
+			if (!wait) {
+				return null;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FileLockInterruptionException();
+			}
+			waited = true;
+		}
+	}
+
+	//used when the channel is closed, which also wakes anything waiting on a lock through it
+	protected synchronized void releaseAll(FileChannel channel) {
+		Iterator<RangeLock> iterator = locks.iterator();
+		while (iterator.hasNext()) {
+			RangeLock lock = iterator.next();
+			if (lock.channel() == channel) {
+				lock.valid = false;
+				iterator.remove();
+			}
+		}
+		notifyAll();
+	}
+
+	private synchronized void release(RangeLock lock) {
+		if (lock.valid) {
+			lock.valid = false;
+			locks.remove(lock);
+			notifyAll();
+		}
+	}
+
+	private final class RangeLock extends FileLock {
+		//guarded by the table's monitor
+		private boolean valid = true;
+
+		private RangeLock(FileChannel channel, long position, long size, boolean shared) {
+			super(channel, position, size, shared);
+		}
+
+		@Override
+		public boolean isValid() {
+			synchronized (FileLockTable.this) {
+				return valid;
+			}
+		}
+
+		@Override
+		public void release() throws IOException {
+			if (!channel().isOpen()) {
+				throw new ClosedChannelException();
+			}
+			FileLockTable.this.release(this);
+		}
+
+	}
+
+}
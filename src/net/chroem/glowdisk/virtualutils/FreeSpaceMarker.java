@@ -21,10 +21,11 @@
 package net.chroem.glowdisk.virtualutils;
 
 public class FreeSpaceMarker {
-	protected int leftBound;
-	protected int rightBound;
+	protected long leftBound;
+	protected long rightBound;
 	
 	private final VirtualDisk containingDisk;
+	protected AllocationGroup group;
 	
 	AllocatedSpaceMarker precedingDataSegment;
 	
@@ -32,38 +33,52 @@ public class FreeSpaceMarker {
 		this.leftBound = leftIndex;
 	}*/
 	
-	protected FreeSpaceMarker(int leftIndex, int rightIndex, AllocatedSpaceMarker reservedFor) {
+	protected FreeSpaceMarker(long leftIndex, long rightIndex, AllocatedSpaceMarker reservedFor, AllocationGroup group) {
 		this.leftBound = leftIndex;
 		this.rightBound = rightIndex;
 		precedingDataSegment = reservedFor;
 		containingDisk = precedingDataSegment.parent.getContainingDisk();
+		this.group = group;
 	}
 	
-	private FreeSpaceMarker(int leftIndex, int rightIndex, VirtualDisk containingDisk) {
+	private FreeSpaceMarker(long leftIndex, long rightIndex, VirtualDisk containingDisk, AllocationGroup group) {
 		this.leftBound = leftIndex;
 		this.rightBound = rightIndex;
 		this.containingDisk = containingDisk;
+		this.group = group;
 	}
 	
-	protected static FreeSpaceMarker generateRoot(VirtualDisk containingDisk) {
-		return new FreeSpaceMarker(1024, containingDisk.getSize() - 1, containingDisk);
+	protected static FreeSpaceMarker generateRoot(VirtualDisk containingDisk, AllocationGroup group) {
+		return new FreeSpaceMarker(1024, containingDisk.getSize() - 1, containingDisk, group);
 	}
 	
-	public int getSize() {
+	//used while mounting, the marker is tied to the segment before it once that segment is claimed
+	protected static FreeSpaceMarker generateUnreserved(VirtualDisk containingDisk, long leftIndex, long rightIndex, AllocationGroup group) {
+		return new FreeSpaceMarker(leftIndex, rightIndex, containingDisk, group);
+	}
+	
+	//cuts off everything from the given index onwards into a new, unreserved marker in another group
+	protected FreeSpaceMarker split(long index, AllocationGroup group) {
+		FreeSpaceMarker marker = new FreeSpaceMarker(index, this.rightBound, containingDisk, group);
+		this.rightBound = index - 1;
+		return marker;
+	}
+	
+	public long getSize() {
 		return rightBound - leftBound;
 	}
 	
-	public int getReserved() {
+	public long getReserved() {
 		if (containsReservedZone()) {
-			int reservedSize = (int) (( (4.0 * (double) precedingDataSegment.parent.getAllocatedSize() * (double) containingDisk.getFreeSpace())) / ((double) containingDisk.getSize()));
-			int zoneSize = getSize();
+			long reservedSize = (long) (( (4.0 * (double) precedingDataSegment.parent.getAllocatedSize() * (double) containingDisk.getFreeSpace())) / ((double) containingDisk.getSize()));
+			long zoneSize = getSize();
 			return ((float) reservedSize / (float) zoneSize < .5) ? reservedSize : zoneSize;
 		} else {
 			return 0;
 		}
 	}
 	
-	public int getUnreserved() {
+	public long getUnreserved() {
 		return getSize() - getReserved();
 	}
 	
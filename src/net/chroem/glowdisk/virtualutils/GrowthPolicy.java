@@ -0,0 +1,34 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */package net.chroem.glowdisk.virtualutils;
+
+/**
+ * Decides how much to grow a file by when a writer runs out of room in it.
+ * The disk caps whatever is returned at the free space left.
+ */
+public interface GrowthPolicy {
+	
+	/**
+	 * @param file the file being written, which already holds its write lock
+	 * @param sizeHint how large the file is expected to get, or zero if nothing is known
+	 * @return the number of bytes to add to the file's allocation
+	 */
+	public long getGrowthSize(VirtualFile file, long sizeHint);
+	
+}
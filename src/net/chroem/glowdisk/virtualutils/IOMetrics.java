@@ -0,0 +1,215 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the operations done on a disk, the bytes they moved and how long they took.  Recording takes no lock: every
+ * thread adds to one of several stripes picked by its id, so threads rarely write to the same counters, and the
+ * stripes are only added up when a snapshot is taken (see IOStatistics).
+ *
+ * Latencies are counted in a histogram with four buckets to each power of two of nanoseconds, so a percentile read
+ * from it is at most a quarter above the true one.
+ *
+ * Listeners are handed the operations done since the last report, every report interval, from a daemon thread that
+ * only runs while there are listeners.
+ */
+public class IOMetrics {
+
+	//the operations, in the order their names are listed
+	public static final int OPEN = 0;
+	public static final int READ = 1;
+	public static final int WRITE = 2;
+	public static final int CLOSE = 3;
+	public static final int MKDIRS = 4;
+	public static final int DELETE = 5;
+	public static final int FLUSH = 6;
+	protected static final String[] OPERATION_NAMES = {"open", "read", "write", "close", "mkdirs", "delete", "flush"};
+	protected static final int OPERATIONS = OPERATION_NAMES.length;
+
+	//latencies of more than 2^45 nanoseconds, nearly ten hours, are counted in the last bucket
+	protected static final int BUCKETS = 43 * 4 + 4;
+	private static final int MAXIMUM_STRIPES = 32;
+	private static final long DEFAULT_REPORT_INTERVAL = 10000;
+
+	//each operation's count, bytes and total nanoseconds, then its histogram
+	private static final int COUNT = 0;
+	private static final int BYTES = 1;
+	private static final int NANOS = 2;
+	private static final int HISTOGRAM = 3;
+	private static final int OPERATION_LENGTH = HISTOGRAM + BUCKETS;
+	private static final int STRIPE_LENGTH = OPERATIONS * OPERATION_LENGTH;
+
+	private final AtomicLongArray stripes;
+	private final int stripeMask;
+	private final long startTime = System.nanoTime();
+	private volatile boolean enabled = true;
+
+	private final List<IOMetricsListener> listeners = new CopyOnWriteArrayList<IOMetricsListener>();
+	private volatile long reportInterval = DEFAULT_REPORT_INTERVAL;
+	private Thread reporter;
+
+	protected IOMetrics() {
+		int stripeCount = Math.min(MAXIMUM_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+		this.stripes = new AtomicLongArray(stripeCount * STRIPE_LENGTH);
+		this.stripeMask = stripeCount - 1;
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	//operations already started when recording is turned back on are not counted
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	//returns the time to hand to record once the operation is done, zero while recording is off
+	protected long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	protected void record(int operation, long startTime, long bytes) {
+		if (startTime == 0) {
+			return;
+		}
+		long nanos = Math.max(0, System.nanoTime() - startTime);
+		int index = ((int) Thread.currentThread().getId() & stripeMask) * STRIPE_LENGTH + operation * OPERATION_LENGTH;
+		stripes.incrementAndGet(index + COUNT);
+		if (bytes > 0) {
+			stripes.addAndGet(index + BYTES, bytes);
+		}
+		stripes.addAndGet(index + NANOS, nanos);
+		stripes.incrementAndGet(index + HISTOGRAM + getBucket(nanos));
+	}
+
+	//adds up the stripes, operations recorded while this runs may or may not be counted
+	public IOStatistics getStatistics() {
+		long[][] counters = new long[OPERATIONS][OPERATION_LENGTH];
+		long time = System.nanoTime();
+		for (int stripe = 0; stripe <= stripeMask; stripe++) {
+			for (int operation = 0; operation < OPERATIONS; operation++) {
+				int index = stripe * STRIPE_LENGTH + operation * OPERATION_LENGTH;
+				long[] operationCounters = counters[operation];
+				for (int i = 0; i < OPERATION_LENGTH; i++) {
+					operationCounters[i] += stripes.get(index + i);
+				}
+			}
+		}
+		long[] counts = new long[OPERATIONS];
+		long[] bytes = new long[OPERATIONS];
+		long[] nanos = new long[OPERATIONS];
+		long[][] histograms = new long[OPERATIONS][];
+		for (int operation = 0; operation < OPERATIONS; operation++) {
+			long[] operationCounters = counters[operation];
+			counts[operation] = operationCounters[COUNT];
+			bytes[operation] = operationCounters[BYTES];
+			nanos[operation] = operationCounters[NANOS];
+			histograms[operation] = Arrays.copyOfRange(operationCounters, HISTOGRAM, OPERATION_LENGTH);
+		}
+		return new IOStatistics(startTime, time, counts, bytes, nanos, histograms);
+	}
+
+	public synchronized void addListener(IOMetricsListener listener) {
+		listeners.add(listener);
+		if (reporter == null) {
+			startReporter();
+		}
+	}
+
+	public synchronized void removeListener(IOMetricsListener listener) {
+		listeners.remove(listener);
+		if (listeners.isEmpty() && reporter != null) {
+			reporter.interrupt();
+			this.reporter = null;
+		}
+	}
+
+	public long getReportInterval() {
+		return this.reportInterval;
+	}
+
+	//takes effect after the next report
+	public void setReportInterval(long milliseconds) {
+		if (milliseconds < 1) throw new IllegalArgumentException("The report interval must be positive!");
+		this.reportInterval = milliseconds;
+	}
+
+	//only call while holding this object's monitor
+	private void startReporter() {
+		this.reporter = new Thread("GlowDisk metrics reporter") {
+
+			@Override
+			public void run() {
+				IOStatistics previous = getStatistics();
+				try {
+					while (!isInterrupted()) {
+						Thread.sleep(reportInterval);
+						IOStatistics current = getStatistics();
+						IOStatistics interval = current.since(previous);
+						previous = current;
+						for (IOMetricsListener listener : listeners) {
+							try {
+								listener.metricsReported(interval);
+							} catch (RuntimeException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					//the last listener was removed
+				}
+			}
+
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	//four buckets to each power of two, counting everything below four nanoseconds one by one
+	protected static int getBucket(long nanos) {
+		if (nanos < 4) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int bucket = (exponent - 1) * 4 + (int) ((nanos >>> (exponent - 2)) & 3);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	//the largest latency counted in the given bucket
+	protected static long getBucketLimit(int bucket) {
+		if (bucket < 4) {
+			return bucket;
+		}
+		int exponent = bucket / 4 + 1;
+		return ((4L + bucket % 4 + 1) << (exponent - 2)) - 1;
+	}
+
+	public static String getOperationName(int operation) {
+		return OPERATION_NAMES[operation];
+	}
+
+}
@@ -0,0 +1,47 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+/**
+ * One kind of operation on a mounted disk as seen through JMX, see VirtualDisk.registerMBeans.  The count and the
+ * bytes are totals since mounting.  The rates and latencies, in nanoseconds, cover the time between the latest two
+ * snapshots, which are taken at most once a second as the attributes are read.
+ */
+public interface IOOperationMXBean {
+
+	public long getCount();
+
+	public long getBytes();
+
+	public double getOperationsPerSecond();
+
+	public double getBytesPerSecond();
+
+	public long getMeanLatency();
+
+	public long getLatencyP50();
+
+	public long getLatencyP99();
+
+	public long getLatencyP999();
+
+}
@@ -0,0 +1,96 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+//serves one operation's metrics to JMX, see IOOperationMXBean
+public class IOOperationMonitor implements IOOperationMXBean {
+
+	private static final long SNAPSHOT_INTERVAL = 1000L * 1000L * 1000L;
+
+	private final IOMetrics metrics;
+	private final int operation;
+	private IOStatistics total;
+	private IOStatistics window;
+
+	protected IOOperationMonitor(IOMetrics metrics, int operation) {
+		this.metrics = metrics;
+		this.operation = operation;
+	}
+
+	private synchronized IOStatistics getTotal() {
+		if (total == null) {
+			this.total = metrics.getStatistics();
+			this.window = total;
+		} else if (System.nanoTime() - total.getTime() >= SNAPSHOT_INTERVAL) {
+			IOStatistics previous = total;
+			this.total = metrics.getStatistics();
+			this.window = total.since(previous);
+		}
+		return this.total;
+	}
+
+	private synchronized IOStatistics getWindow() {
+		getTotal();
+		return this.window;
+	}
+
+	@Override
+	public long getCount() {
+		return getTotal().getCount(operation);
+	}
+
+	@Override
+	public long getBytes() {
+		return getTotal().getBytes(operation);
+	}
+
+	@Override
+	public double getOperationsPerSecond() {
+		return getWindow().getOperationsPerSecond(operation);
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return getWindow().getBytesPerSecond(operation);
+	}
+
+	@Override
+	public long getMeanLatency() {
+		return getWindow().getMeanLatency(operation);
+	}
+
+	@Override
+	public long getLatencyP50() {
+		return getWindow().getLatency(operation, 0.5);
+	}
+
+	@Override
+	public long getLatencyP99() {
+		return getWindow().getLatency(operation, 0.99);
+	}
+
+	@Override
+	public long getLatencyP999() {
+		return getWindow().getLatency(operation, 0.999);
+	}
+
+}
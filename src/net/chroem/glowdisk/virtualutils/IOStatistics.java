@@ -0,0 +1,147 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+/**
+ * The operations recorded by IOMetrics over an interval, either since the disk was mounted or, for the snapshots
+ * handed to listeners, since the previous report.  Operations are named by the constants in IOMetrics, and
+ * latencies are in nanoseconds.
+ */
+public class IOStatistics {
+
+	private final long startTime;
+	private final long endTime;
+	private final long[] counts;
+	private final long[] bytes;
+	private final long[] nanos;
+	private final long[][] histograms;
+
+	protected IOStatistics(long startTime, long endTime, long[] counts, long[] bytes, long[] nanos, long[][] histograms) {
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.counts = counts;
+		this.bytes = bytes;
+		this.nanos = nanos;
+		this.histograms = histograms;
+	}
+
+	//the operations recorded after the given, earlier snapshot was taken
+	public IOStatistics since(IOStatistics earlier) {
+		long[] counts = new long[IOMetrics.OPERATIONS];
+		long[] bytes = new long[IOMetrics.OPERATIONS];
+		long[] nanos = new long[IOMetrics.OPERATIONS];
+		long[][] histograms = new long[IOMetrics.OPERATIONS][IOMetrics.BUCKETS];
+		for (int operation = 0; operation < IOMetrics.OPERATIONS; operation++) {
+			counts[operation] = this.counts[operation] - earlier.counts[operation];
+			bytes[operation] = this.bytes[operation] - earlier.bytes[operation];
+			nanos[operation] = this.nanos[operation] - earlier.nanos[operation];
+			for (int i = 0; i < IOMetrics.BUCKETS; i++) {
+				histograms[operation][i] = this.histograms[operation][i] - earlier.histograms[operation][i];
+			}
+		}
+		return new IOStatistics(earlier.endTime, endTime, counts, bytes, nanos, histograms);
+	}
+
+	//the System.nanoTime at which the snapshot was taken
+	protected long getTime() {
+		return endTime;
+	}
+
+	//the length of the interval in nanoseconds
+	public long getInterval() {
+		return endTime - startTime;
+	}
+
+	public long getCount(int operation) {
+		return counts[operation];
+	}
+
+	public long getBytes(int operation) {
+		return bytes[operation];
+	}
+
+	public long getBytesRead() {
+		return bytes[IOMetrics.READ];
+	}
+
+	public long getBytesWritten() {
+		return bytes[IOMetrics.WRITE];
+	}
+
+	public double getOperationsPerSecond(int operation) {
+		return perSecond(counts[operation]);
+	}
+
+	public double getBytesPerSecond(int operation) {
+		return perSecond(bytes[operation]);
+	}
+
+	public long getMeanLatency(int operation) {
+		return (counts[operation] == 0) ? 0 : nanos[operation] / counts[operation];
+	}
+
+	/**
+	 * Returns the latency that the given fraction of the operations took no longer than, such as 0.99 for the 99th
+	 * percentile, or zero if there were none.  It is the top of the histogram bucket the percentile falls in.
+	 */
+	public long getLatency(int operation, double quantile) {
+		if (quantile < 0 || quantile > 1) throw new IllegalArgumentException("The quantile must be between 0 and 1!");
+		long[] histogram = histograms[operation];
+		long total = 0;
+		for (long count : histogram) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long counted = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			counted += histogram[i];
+			if (counted >= rank) {
+				return IOMetrics.getBucketLimit(i);
+			}
+		}
+		return IOMetrics.getBucketLimit(histogram.length - 1);
+	}
+
+	private double perSecond(long value) {
+		long interval = getInterval();
+		return (interval <= 0) ? 0 : value * 1e9 / interval;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int operation = 0; operation < IOMetrics.OPERATIONS; operation++) {
+			if (counts[operation] == 0) {
+				continue;
+			}
+			builder.append(IOMetrics.getOperationName(operation)).append(": ").append(counts[operation]).append(" ops, ")
+					.append(String.format("%.1f", getOperationsPerSecond(operation))).append("/s, ").append(bytes[operation]).append(" bytes, p50 ")
+					.append(getLatency(operation, 0.5)).append("ns p99 ").append(getLatency(operation, 0.99)).append("ns p999 ")
+					.append(getLatency(operation, 0.999)).append("ns\n");
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,228 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */package net.chroem.glowdisk.virtualutils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reads the binary manifest written by ManifestWriter.  The files' extents are only claimed once the slab
+ * allocator's pages have been read from the end of the manifest, so they are collected until then.
+ * A reader over a manifest region can hand out slices of it, which is how a directory's children are kept on the
+ * disk until they are needed.  Its buffer is only allocated once it is read from, since a directory that is never
+ * used keeps its slice for as long as the disk is mounted.
+ */
+public class ManifestReader {
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	private final InputStream input;
+	private final ManifestRegion region;
+	//the part of the region that has not been read into the buffer yet
+	private long next;
+	private final long end;
+	private byte[] buffer;
+	private int position = 0;
+	private int limit = 0;
+	private int version = ManifestWriter.VERSION;
+	
+	private final ArrayList<VirtualFile> segmentOwners = new ArrayList<VirtualFile>();
+	private final ArrayList<long[]> segments = new ArrayList<long[]>();
+	
+	protected ManifestReader(InputStream input) {
+		this.input = input;
+		this.region = null;
+		this.end = 0;
+		this.buffer = new byte[BUFFER_SIZE];
+	}
+	
+	protected ManifestReader(ManifestRegion region, long position, long length) {
+		this.input = null;
+		this.region = region;
+		this.next = position;
+		this.end = position + length;
+	}
+	
+	//the magic number has already been read from the input
+	protected int readVersion() throws IOException {
+		int version = readByte();
+		if (version < 1 || version > ManifestWriter.VERSION) {
+			throw new IOException("Unsupported manifest version " + version + "!");
+		}
+		this.version = version;
+		return version;
+	}
+	
+	protected int getVersion() {
+		return this.version;
+	}
+	
+	//returns a reader over the next length bytes and skips past them
+	protected ManifestReader slice(long length) throws IOException {
+		if (region == null) throw new IOException("Only a manifest on the disk can be sliced!");
+		if (length < 0 || length > remaining()) throw new EOFException("The manifest ended unexpectedly!");
+		ManifestReader slice = new ManifestReader(region, getRegionPosition(), length);
+		slice.version = this.version;
+		if (length <= limit - position) {
+			position += length;
+		} else {
+			this.next = getRegionPosition() + length;
+			this.position = 0;
+			this.limit = 0;
+		}
+		return slice;
+	}
+	
+	//a separate reader over the same bytes, so that reading one leaves the other where it was
+	protected ManifestReader duplicate() throws IOException {
+		if (region == null) throw new IOException("Only a manifest on the disk can be duplicated!");
+		ManifestReader duplicate = new ManifestReader(region, getRegionPosition(), remaining());
+		duplicate.version = this.version;
+		return duplicate;
+	}
+	
+	//a reader over the copy of the same bytes that was written the given distance away in another region
+	protected ManifestReader move(ManifestRegion region, long offset) {
+		ManifestReader moved = new ManifestReader(region, getRegionPosition() + offset, remaining());
+		moved.version = this.version;
+		return moved;
+	}
+	
+	protected boolean isIn(ManifestRegion region) {
+		return this.region == region;
+	}
+	
+	protected ManifestRegion getRegion() {
+		return this.region;
+	}
+	
+	//where the unread bytes start in the region
+	protected long getRegionPosition() {
+		return next - (limit - position);
+	}
+	
+	//the unread bytes, written out as they are without reading past them
+	protected void copyTo(ManifestWriter writer) throws IOException {
+		if (position < limit) {
+			writer.writeBytes(buffer, position, limit - position);
+		}
+		if (next < end) {
+			byte[] data = new byte[(int) Math.min(BUFFER_SIZE, end - next)];
+			for (long from = next; from < end; from += data.length) {
+				int length = (int) Math.min(data.length, end - from);
+				region.get(from, data, 0, length);
+				writer.writeBytes(data, 0, length);
+			}
+		}
+	}
+	
+	protected long remaining() {
+		return (limit - position) + (end - next);
+	}
+	
+	private void fill() throws IOException {
+		if (input != null) {
+			limit = input.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit < 1) {
+				limit = 0;
+				throw new EOFException("The manifest ended unexpectedly!");
+			}
+			return;
+		}
+		if (next == end) {
+			throw new EOFException("The manifest ended unexpectedly!");
+		}
+		//nothing more than what is left is ever read, so a buffer that fits it now is large enough for good
+		if (buffer == null) {
+			buffer = new byte[(int) Math.min(BUFFER_SIZE, end - next)];
+		}
+		int length = (int) Math.min(buffer.length, end - next);
+		region.get(next, buffer, 0, length);
+		next += length;
+		position = 0;
+		limit = length;
+	}
+	
+	protected int readByte() throws IOException {
+		if (position == limit) {
+			fill();
+		}
+		return buffer[position++] & 0xFF;
+	}
+	
+	protected long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in the manifest!");
+	}
+	
+	protected int readVarInt() throws IOException {
+		long value = readVarLong();
+		if (value > Integer.MAX_VALUE) throw new IOException("Malformed count in the manifest!");
+		return (int) value;
+	}
+	
+	protected long readSignedVarLong() throws IOException {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	protected byte[] readBytes(int length) throws IOException {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) readByte();
+		}
+		return bytes;
+	}
+	
+	protected String readString() throws IOException {
+		int length = readVarInt();
+		if (length > 0 && limit - position >= length) {
+			String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+		return new String(readBytes(length), StandardCharsets.UTF_8);
+	}
+	
+	protected void addSegment(VirtualFile file, long beginIndex, long endIndex) {
+		segmentOwners.add(file);
+		segments.add(new long[] {beginIndex, endIndex});
+	}
+	
+	protected void claimSegments() {
+		for (int i = 0; i < segments.size(); i++) {
+			long[] segment = segments.get(i);
+			AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(segmentOwners.get(i), segment[0], segment[1]);
+		}
+		segmentOwners.clear();
+		segments.clear();
+	}
+	
+}
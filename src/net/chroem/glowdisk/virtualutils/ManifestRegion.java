@@ -0,0 +1,90 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The extents a manifest is written to, read and written as if they were one run starting at zero.  Readers and
+ * writers over the same region can be used from different threads, since every transfer works on its own view of
+ * the mapped buffer.
+ */
+public class ManifestRegion {
+
+	private final ChainedMappedBuffer buffer;
+	private final long[] beginIndices;
+	//where each extent starts within the region, followed by the region's length
+	private final long[] positions;
+
+	protected ManifestRegion(ChainedMappedBuffer buffer, List<long[]> extents) {
+		this.buffer = buffer;
+		this.beginIndices = new long[extents.size()];
+		this.positions = new long[extents.size() + 1];
+		for (int i = 0; i < beginIndices.length; i++) {
+			long[] extent = extents.get(i);
+			beginIndices[i] = extent[0];
+			positions[i + 1] = positions[i] + extent[1] - extent[0];
+		}
+	}
+
+	protected long getLength() {
+		return positions[positions.length - 1];
+	}
+
+	protected void get(long position, byte[] data, int offset, int length) {
+		ByteBuffer destination = ByteBuffer.wrap(data, offset, length);
+		for (int i = getExtentNumber(position); length > 0; i++) {
+			int len = (int) Math.min(length, positions[i + 1] - position);
+			buffer.get(beginIndices[i] + position - positions[i], destination, len);
+			position += len;
+			length -= len;
+		}
+	}
+
+	protected void put(long position, byte[] data, int offset, int length) {
+		ByteBuffer source = ByteBuffer.wrap(data, offset, length);
+		for (int i = getExtentNumber(position); length > 0; i++) {
+			int len = (int) Math.min(length, positions[i + 1] - position);
+			buffer.put(beginIndices[i] + position - positions[i], source, len);
+			position += len;
+			length -= len;
+		}
+	}
+
+	//binary search for the extent holding the position
+	private int getExtentNumber(long position) {
+		if (position < 0 || position > getLength()) throw new IndexOutOfBoundsException("Position " + position + " lies outside of the manifest!");
+		int low = 0;
+		int high = beginIndices.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (positions[middle] <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+}
@@ -0,0 +1,203 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */package net.chroem.glowdisk.virtualutils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Writes the binary manifest: a magic number and version, the free space, the journal's location, the file tree as
+ * one inode record per file, and then the slab allocator's pages.  Each directory's children are prefixed with their
+ * length, so that mounting can skip them until they are needed.  Numbers are written as varints and extents as the
+ * distance from the end of the previous one, so a typical record only takes a few bytes more than its name.  Journal
+ * records are encoded with it too.
+ *
+ * The manifest is written straight into a region of the disk.  Whatever does not fit is only counted, so that the
+ * caller can find out how much room it needs and try again.  A length that is only known once what follows it has
+ * been written is patched in afterwards, padded to a fixed width that readers take as any other varint.
+ */
+public class ManifestWriter {
+	
+	protected static final int MAGIC = 0x474C4D46; //GLMF
+	//version 2 added the journal's location and the sequence number of the last journal record in the manifest
+	//version 3 added the free space, the size and length of each directory's children and the pages' used slots
+	protected static final int VERSION = 3;
+	
+	//the most bytes a varint of a positive long or int takes
+	protected static final int LONG_WIDTH = 9;
+	protected static final int INT_WIDTH = 5;
+	
+	private final OutputStream output;
+	private final ManifestRegion region;
+	private final byte[] buffer = new byte[8192];
+	private int position = 0;
+	//everything before the buffer, whether or not it fit in the region
+	private long flushed = 0;
+	
+	//the unloaded directories copied into the region, with how far their children moved
+	private final ArrayList<VirtualFile> copyOwners = new ArrayList<VirtualFile>();
+	private final ArrayList<ManifestReader> copySources = new ArrayList<ManifestReader>();
+	private final ArrayList<Long> copyOffsets = new ArrayList<Long>();
+	
+	protected ManifestWriter(OutputStream output) {
+		this.output = output;
+		this.region = null;
+	}
+	
+	protected ManifestWriter(ManifestRegion region) {
+		this.output = null;
+		this.region = region;
+	}
+	
+	protected void writeHeader() throws IOException {
+		writeInt(MAGIC);
+		writeByte(VERSION);
+	}
+	
+	protected void writeByte(int b) throws IOException {
+		if (position == buffer.length) {
+			flush();
+		}
+		buffer[position++] = (byte) b;
+	}
+	
+	protected void writeInt(int value) throws IOException {
+		for (int shift = 24; shift > -1; shift -= 8) {
+			writeByte(value >>> shift);
+		}
+	}
+	
+	//seven bits at a time, lowest first, with the top bit set on every byte but the last
+	protected void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		writeByte((int) value);
+	}
+	
+	//zigzag encoded, so that small negative numbers stay short
+	protected void writeSignedVarLong(long value) throws IOException {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+	
+	protected void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+		if (length > buffer.length - position) {
+			flush();
+			write(bytes, offset, length);
+		} else {
+			System.arraycopy(bytes, offset, buffer, position, length);
+			position += length;
+		}
+	}
+	
+	protected void writeString(String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length);
+		for (byte b : bytes) {
+			writeByte(b);
+		}
+	}
+	
+	//the number of bytes written so far, including any that did not fit in the region
+	protected long getPosition() {
+		return flushed + position;
+	}
+	
+	//leaves room for a varint of the given width, to be filled in by patchVarLong
+	protected long reserveVarLong(int width) throws IOException {
+		long reserved = getPosition();
+		for (int i = 0; i < width; i++) {
+			writeByte(0);
+		}
+		return reserved;
+	}
+	
+	protected void patchVarLong(long reserved, long value, int width) throws IOException {
+		byte[] bytes = new byte[width];
+		for (int i = 0; i < width; i++) {
+			bytes[i] = (byte) ((value & 0x7F) | ((i < width - 1) ? 0x80 : 0));
+			value >>>= 7;
+		}
+		if (value != 0) throw new IOException("The value does not fit in the room left for it!");
+		int flushedBytes = (int) Math.min(width, Math.max(0, flushed - reserved));
+		if (flushedBytes > 0) {
+			if (region == null) throw new IOException("Only a manifest written to the disk can be patched once flushed!");
+			put(reserved, bytes, 0, flushedBytes);
+		}
+		if (flushedBytes < width) {
+			System.arraycopy(bytes, flushedBytes, buffer, (int) (reserved + flushedBytes - flushed), width - flushedBytes);
+		}
+	}
+	
+	//copies the children of a directory that was never loaded, remembering where they went
+	protected void copyChildren(VirtualFile directory, ManifestReader children) throws IOException {
+		if (region != null) {
+			copyOwners.add(directory);
+			copySources.add(children);
+			copyOffsets.add(getPosition() - children.getRegionPosition());
+		}
+		children.copyTo(this);
+	}
+	
+	/**
+	 * Points every directory whose children were copied at the copy, once the region holds the whole manifest.
+	 * Only call while holding the manifest's lock, and before the region they were copied from is given up.
+	 */
+	protected void moveCopiedChildren() {
+		for (int i = 0; i < copyOwners.size(); i++) {
+			copyOwners.get(i).moveUnloadedChildren(copySources.get(i).getRegion(), region, copyOffsets.get(i));
+		}
+		copyOwners.clear();
+		copySources.clear();
+		copyOffsets.clear();
+	}
+	
+	protected void flush() throws IOException {
+		write(buffer, 0, position);
+		position = 0;
+	}
+	
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		if (region == null) {
+			output.write(bytes, offset, length);
+		} else {
+			put(flushed, bytes, offset, length);
+		}
+		flushed += length;
+	}
+	
+	//anything past the end of the region is dropped
+	private void put(long at, byte[] bytes, int offset, int length) {
+		long room = region.getLength() - at;
+		if (room > 0) {
+			region.put(at, bytes, offset, (int) Math.min(length, room));
+		}
+	}
+	
+	protected void close() throws IOException {
+		flush();
+		if (output != null) {
+			output.close();
+		}
+	}
+	
+}
@@ -21,24 +21,26 @@
 package net.chroem.glowdisk.virtualutils;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
-import java.util.Arrays;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.activation.UnsupportedDataTypeException;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -47,33 +49,38 @@ import net.chroem.glowdisk.virtualutils.AllocatedSpaceMarker;
 
 public class MemoryBackedVirtualDisk extends VirtualDisk{
 
-	private JsonParser parser = new JsonParser();
-	private final Gson gson = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+	//orders copies between two files whose identity hash codes happen to be equal
+	private static final Lock TRANSFER_TIE_LOCK = new ReentrantLock();
 
+	protected ChainedMappedBuffer buffer;
+	private boolean mounting = false;
+	//null while mounting, or if the disk is too small to spare the room for one
+	private MetadataJournal journal;
 	
-	protected MappedByteBuffer buffer;
-	private final int size;
+	/**
+	 * The header holds a table of the manifest's extents, as pairs of begin and end indexes ended by Long.MIN_VALUE.
+	 * When there are more than it can hold, its last entry points to a block holding the rest, whose own last entry
+	 * can point to another.  A pointer is stored as -2 minus the block's begin index, followed by its end index.
+	 * The blocks are the segments of this hidden file, and are kept from one manifest update to the next.
+	 */
+	private final VirtualFile extentTable = VirtualFile.generateHiddenFile();
+	private static final int HEADER_ENTRIES = 64;
+	private static final long TABLE_BLOCK_SIZE = 4096;
+	private static final long MINIMUM_TABLE_BLOCK_SIZE = 32;
+	//how long the last manifest written or read was, guarded by the manifest's lock
+	private long manifestLength = 0;
 	
-	public MemoryBackedVirtualDisk(File diskFile, int size) throws UnsupportedDataTypeException {
+	public MemoryBackedVirtualDisk(File diskFile, long size) throws IOException {
 		super(size);
 		if (size < 1) throw new IllegalArgumentException ("The disk must be at least one byte long!");
-		if (!diskFile.getName().endsWith(".gldsk")) throw new UnsupportedDataTypeException("GlowDisk requires files to be in the .gldsk format!");
-		this.size = size;
+		if (!diskFile.getName().endsWith(".gldsk")) throw new IOException("GlowDisk requires files to be in the .gldsk format!");
 		try {
 			try {
-				diskFile.createNewFile();
-				FileOutputStream output = new FileOutputStream(diskFile);
-				byte[] blankData = new byte[4096];
-				Arrays.fill(blankData, Byte.MIN_VALUE);
-				int largeIterations =  size / 4096;
-				int smallIterations = size % 4096;
-				for (int i = 0; i < largeIterations; i++) {
-					output.write(blankData);
-				}
-				for (int i = 0; i < smallIterations; i++){
-					output.write(Byte.MIN_VALUE);
-				}
-				output.close();
+				//only sized, so the free space takes up no room on filesystems with sparse files and reads back as zeroes
+				RandomAccessFile file = new RandomAccessFile(diskFile, "rw");
+				file.setLength(0);
+				file.setLength(size);
+				file.close();
 			} catch (FileNotFoundException | SecurityException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
@@ -83,8 +90,11 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 			try {
 				@SuppressWarnings("resource")
 				FileChannel channel = new RandomAccessFile(diskFile, "rw").getChannel();
-				this.buffer = channel.map(MapMode.READ_WRITE, 0, diskFile.length());
+				this.buffer = new ChainedMappedBuffer(channel, diskFile.length());
 				channel.close();
+				//an empty extent table, which is all the header needs until the first manifest is written
+				buffer.putLong(0, Long.MIN_VALUE);
+				buffer.putLong(8, Long.MIN_VALUE);
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
 			} catch (IOException e) {
@@ -93,85 +103,451 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 		} catch (Throwable e) {
 			e.printStackTrace();
 		}
+		super.stripeFreeSpace();
+		startJournal(true);
 	}
 	
 	
 	public MemoryBackedVirtualDisk(File diskFile) throws FileNotFoundException, IOException{
-		super((int) diskFile.length() - 1024);
-		this.size = (int) diskFile.length() - 1024;
+		super(diskFile.length());
 		FileChannel channel;
 		channel = new RandomAccessFile(diskFile, "rw").getChannel();
-		this.buffer = channel.map(MapMode.READ_WRITE, 0, diskFile.length());
+		this.buffer = new ChainedMappedBuffer(channel, diskFile.length());
 		channel.close();
 		
-		for (int i = 0; i < 64; i++) {
-			if (buffer.getLong(i * 16) != Long.MIN_VALUE) {
-				long startIndex = buffer.getLong(i * 16);
-				long endIndex = buffer.getLong((i * 16) + 8);
-				AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(super.manifest, (int) startIndex, (int) endIndex);
-			} else {
+		List<long[]> manifestExtents = new ArrayList<long[]>();
+		List<long[]> tableBlocks = new ArrayList<long[]>();
+		readExtentTable(manifestExtents, tableBlocks);
+		int replayed = 0;
+		if (!manifestExtents.isEmpty()) {
+			replayed = loadFileTree(manifestExtents, tableBlocks);
+		}
+		super.stripeFreeSpace();
+		startJournal(replayed > 0);
+	}
+	
+	//the extents are only claimed once the free space has been read, since newer manifests hold it
+	private void readExtentTable(List<long[]> manifestExtents, List<long[]> tableBlocks) {
+		long tableIndex = 0;
+		long tableEntries = HEADER_ENTRIES;
+		for (long entry = 0; entry < tableEntries; entry++) {
+			long beginIndex = buffer.getLong(tableIndex + entry * 16);
+			long endIndex = buffer.getLong(tableIndex + entry * 16 + 8);
+			if (beginIndex == Long.MIN_VALUE) {
 				break;
+			} else if (beginIndex < 0) {
+				long blockIndex = -2 - beginIndex;
+				if (blockIndex < 1024 || endIndex > super.getSize() || endIndex - blockIndex < MINIMUM_TABLE_BLOCK_SIZE) {
+					System.err.println("The manifest's extent table points outside of the disk!");
+					break;
+				}
+				tableBlocks.add(new long[] {blockIndex, endIndex});
+				tableIndex = blockIndex;
+				tableEntries = (endIndex - blockIndex) / 16;
+				entry = -1;
+			} else if (beginIndex >= 1024 && endIndex <= super.getSize() && endIndex >= beginIndex) {
+				manifestExtents.add(new long[] {beginIndex, endIndex});
 			}
-			InputStream input = getInputStream(super.manifest);
-			ByteArrayOutputStream output = new ByteArrayOutputStream();
-			byte[] buffer = new byte[4096];
-			int len;
-			while ((len = input.read(buffer)) > -1) {
-				output.write(buffer, 0, len);
+		}
+	}
+	
+	private void claimManifest(List<long[]> manifestExtents, List<long[]> tableBlocks) {
+		for (long[] block : tableBlocks) {
+			AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(extentTable, block[0], block[1]);
+			extentTable.getEndMarker().flexible = false;
+		}
+		for (long[] extent : manifestExtents) {
+			AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(super.manifest, extent[0], extent[1]);
+		}
+		super.manifest.dataSize = super.manifest.getAllocatedSize();
+		super.manifest.hasData = super.manifest.dataSize > 0;
+	}
+	
+	//makes the chain of blocks long enough for the given number of extents, and gives back any it no longer needs
+	private void prepareExtentTable(int extentCount) throws IOException {
+		Lock lock = extentTable.getWriteLock();
+		lock.lock();
+		try {
+			int blocks = 0;
+			long capacity = HEADER_ENTRIES;
+			while (extentCount > capacity) {
+				AllocatedSpaceMarker block = getTableBlock(blocks);
+				if (block == null) {
+					throw new IOException("There is no room left to extend the manifest's extent table!");
+				}
+				capacity += block.getSize() / 16 - 1;
+				blocks++;
 			}
-			input.close();
-			JsonObject root = parser.parse(output.toString()).getAsJsonObject();
-			try {
-				super.getRoot().constructChildrenFromJson(root.get("children").getAsJsonArray());
-			} catch (Exception e) {
-				e.printStackTrace();
+			while (extentTable.dataSegments.size() > blocks) {
+				extentTable.getEndMarker().deallocate();
+			}
+			if (!extentTable.dataSegments.isEmpty()) {
+				extentTable.getEndMarker().flexible = false;
 			}
+		} finally {
+			lock.unlock();
 		}
-		
+	}
+	
+	//the extents are begin and end pairs, and must fit in the blocks set aside by prepareExtentTable
+	private void writeExtentTable(List<long[]> extents) throws IOException {
+		Lock lock = extentTable.getWriteLock();
+		lock.lock();
+		try {
+			long tableIndex = 0;
+			long tableEntries = HEADER_ENTRIES;
+			long entry = 0;
+			int block = 0;
+			for (int i = 0; i < extents.size(); i++) {
+				if (entry == tableEntries - 1 && i < extents.size() - 1) {
+					if (block == extentTable.dataSegments.size()) {
+						throw new IOException("The manifest's extent table has not been made long enough!");
+					}
+					AllocatedSpaceMarker next = extentTable.dataSegments.get(block++);
+					buffer.putLong(tableIndex + entry * 16, -2 - next.beginIndex);
+					buffer.putLong(tableIndex + entry * 16 + 8, next.endIndex);
+					tableIndex = next.beginIndex;
+					tableEntries = next.getSize() / 16;
+					entry = 0;
+				}
+				buffer.putLong(tableIndex + entry * 16, extents.get(i)[0]);
+				buffer.putLong(tableIndex + entry * 16 + 8, extents.get(i)[1]);
+				entry++;
+			}
+			if (entry < tableEntries) {
+				buffer.putLong(tableIndex + entry * 16, Long.MIN_VALUE);
+				buffer.putLong(tableIndex + entry * 16 + 8, Long.MIN_VALUE);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	//returns null if the disk has no room for another block
+	private AllocatedSpaceMarker getTableBlock(int index) {
+		if (index < extentTable.dataSegments.size()) {
+			return extentTable.dataSegments.get(index);
+		}
+		if (AllocatedSpaceMarker.addNewAllocatedZoneToParent(extentTable, TABLE_BLOCK_SIZE) < 1) {
+			return null;
+		}
+		AllocatedSpaceMarker block = extentTable.getEndMarker();
+		//blocks never grow, so there is no point in keeping room free behind them
+		block.flexible = false;
+		if (block.getSize() < MINIMUM_TABLE_BLOCK_SIZE) {
+			block.deallocate();
+			return null;
+		}
+		return block;
+	}
+	
+	//a disk without a journal gets one, and a replayed journal is folded into a new checkpoint
+	private void startJournal(boolean checkpoint) {
+		if (this.journal == null) {
+			this.journal = MetadataJournal.create(this);
+			checkpoint = true;
+		}
+		if (checkpoint) {
+			updateFileManifest();
+		}
+		if (this.journal != null) {
+			journal.start();
+		}
+	}
+	
+	/**
+	 * Returns the number of journal records replayed on top of the checkpoint.  Since version 3 the manifest starts
+	 * with the free space, so only the root's own children are read here and every directory below them is read the
+	 * first time it is used.  Older manifests are read in full.
+	 */
+	private int loadFileTree(List<long[]> manifestExtents, List<long[]> tableBlocks) throws IOException {
+		ManifestRegion region = new ManifestRegion(this.buffer, manifestExtents);
+		this.manifestLength = region.getLength();
+		byte[] header = new byte[(int) Math.min(4, region.getLength())];
+		region.get(0, header, 0, header.length);
+		int magic = 0;
+		for (byte b : header) {
+			magic = (magic << 8) | (b & 0xFF);
+		}
+		//rebuilding the tree must not rewrite the manifest before every extent has been claimed
+		this.mounting = true;
+		super.deferClaims();
+		MetadataJournal journal = null;
+		boolean claimed = false;
+		boolean freeSpaceLoaded = false;
+		try {
+			if (magic == ManifestWriter.MAGIC) {
+				//the directories that are skipped keep reading from the manifest where it lies on the disk
+				ManifestReader reader = new ManifestReader(region, 4, region.getLength() - 4);
+				int version = reader.readVersion();
+				if (version > 2) {
+					super.loadFreeSpace(reader);
+					freeSpaceLoaded = true;
+				}
+				claimManifest(manifestExtents, tableBlocks);
+				claimed = true;
+				if (version > 1) {
+					journal = MetadataJournal.readCheckpoint(this, reader);
+				}
+				super.getRoot().readChildren(reader);
+				super.getSlabAllocator().readPages(reader);
+				reader.claimSegments();
+				//the journal frees and claims extents one at a time
+				super.claimDeferredSegments(freeSpaceLoaded);
+				if (journal != null) {
+					return journal.replay();
+				}
+			} else {
+				claimManifest(manifestExtents, tableBlocks);
+				claimed = true;
+				loadJsonFileTree(readManifest(region));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			if (!claimed) {
+				claimManifest(manifestExtents, tableBlocks);
+			}
+			super.claimDeferredSegments(freeSpaceLoaded);
+			this.journal = journal;
+			this.mounting = false;
+		}
+		return 0;
+	}
+	
+	//the whole of a JSON manifest, read straight from its extents
+	private static byte[] readManifest(ManifestRegion region) throws IOException {
+		if (region.getLength() > Integer.MAX_VALUE) throw new IOException("The manifest is too large to be read!");
+		byte[] data = new byte[(int) region.getLength()];
+		region.get(0, data, 0, data.length);
+		return data;
+	}
+	
+	//disks written before the binary manifest hold the tree as JSON
+	private void loadJsonFileTree(byte[] data) throws Exception {
+		JsonObject root = new JsonParser().parse(new String(data)).getAsJsonObject();
+		if (root.has("slabPages")) {
+			super.getSlabAllocator().loadPages(root.get("slabPages").getAsJsonArray());
+		}
+		super.getRoot().constructChildrenFromJson(root.get("children").getAsJsonArray());
 	}
 	
 	
 	@Override
 	public OutputStream getOutputStream(VirtualFile file) throws IOException{
-		return new MemoryFileOutputStream(file);
+		long startTime = metrics.start();
+		OutputStream output = new MemoryFileOutputStream(file);
+		metrics.record(IOMetrics.OPEN, startTime, 0);
+		return output;
 	}
 
 	@Override
 	public InputStream getInputStream(VirtualFile file) {
-		return new MemoryFileInputStream(file);
+		long startTime = metrics.start();
+		InputStream input = new MemoryFileInputStream(file);
+		metrics.record(IOMetrics.OPEN, startTime, 0);
+		return input;
+	}
+	
+	@Override
+	public FileChannel getChannel(VirtualFile file, String mode) throws IOException {
+		if (!mode.equals("r") && !mode.equals("rw") && !mode.equals("rws") && !mode.equals("rwd")) {
+			throw new IllegalArgumentException("Illegal mode \"" + mode + "\" must be one of \"r\", \"rw\", \"rws\", or \"rwd\"");
+		}
+		if (file.isDirectory()) {
+			throw new IOException("The requested file is a directory and cannot be opened as a channel!");
+		}
+		long startTime = metrics.start();
+		FileChannel channel = new MemoryFileChannel(file, mode);
+		metrics.record(IOMetrics.OPEN, startTime, 0);
+		return channel;
 	}
 	
+	/**
+	 * Writes a checkpoint.  Holding the journal's monitor throughout keeps any record from being written between
+	 * taking the checkpoint's sequence number and starting the journal over.
+	 */
 	@Override
 	public void updateFileManifest() {
+		if (mounting) {
+			return;
+		}
+		MetadataJournal journal = this.journal;
+		if (journal == null) {
+			writeManifest();
+			return;
+		}
+		synchronized (journal) {
+			writeManifest();
+			journal.reset();
+		}
+	}
+	
+	@Override
+	protected void logChange(int type, VirtualFile file) {
+		if (mounting) {
+			return;
+		}
+		MetadataJournal journal = this.journal;
+		if (journal == null) {
+			updateFileManifest();
+		} else {
+			journal.log(type, file);
+		}
+	}
+	
+	@Override
+	protected boolean rename(VirtualFile file, VirtualFile directory, String name, boolean replace) {
+		MetadataJournal journal = this.journal;
+		if (mounting || journal == null) {
+			boolean renamed = file.move(directory, name, replace);
+			if (renamed) {
+				updateFileManifest();
+			}
+			return renamed;
+		}
+		return journal.rename(file, directory, name, replace);
+	}
+	
+	@Override
+	public void setGroupCommit(long interval, int threshold) {
+		super.setGroupCommit(interval, threshold);
+		MetadataJournal journal = this.journal;
+		if (journal != null) {
+			if (!isGroupCommitEnabled()) {
+				journal.commit();
+			}
+			journal.wakeUp();
+		}
+	}
+	
+	@Override
+	public void sync() {
+		MetadataJournal journal = this.journal;
+		if (journal != null) {
+			journal.commit();
+		}
+		buffer.force();
+	}
+	
+	/**
+	 * The free space, the tree and the slab pages are written with every allocation held off, so that they agree
+	 * with each other.  The manifest is written straight into new space, and only replaces the old one once it is
+	 * complete, since the directories that have not been loaded yet read their children from the old one until then.
+	 * The old manifest is written as free space.  When the new space turns out to be too small, it is grown and the
+	 * manifest is written again.
+	 */
+	private void writeManifest() {
+		//the manifest's own write lock keeps two updates from interleaving
+		long startTime = metrics.start();
+		Lock manifestLock = super.manifest.getWriteLock();
+		manifestLock.lock();
+		VirtualFile next = VirtualFile.generateHiddenFile();
 		try {
-			OutputStream output =  new ManifestOutputStream();
-			String json = gson.toJson(super.getRoot());
-			output.write(json.getBytes());
-			output.close();
+			SlabAllocator slabAllocator = super.getSlabAllocator();
+			//room to grow, so that the manifest rarely has to be written twice
+			long size = manifestLength + manifestLength / 4 + TABLE_BLOCK_SIZE;
+			ManifestWriter writer;
+			List<long[]> extents;
+			while (true) {
+				if (!next.changeSize(size - next.getAllocatedSize())) {
+					throw new IOException("There is no room left on the disk for the manifest!");
+				}
+				extents = new ArrayList<long[]>();
+				for (AllocatedSpaceMarker segment : next.dataSegments) {
+					extents.add(new long[] {segment.beginIndex, segment.endIndex});
+				}
+				prepareExtentTable(extents.size());
+				writer = new ManifestWriter(new ManifestRegion(this.buffer, extents));
+				slabAllocator.lockPages();
+				super.lockAllocationGroups();
+				super.detachedFiles.add(super.manifest);
+				try {
+					writer.writeHeader();
+					super.writeFreeSpace(writer);
+					if (journal != null) {
+						journal.writeCheckpoint(writer);
+					} else {
+						writer.writeVarLong(0);
+						writer.writeVarLong(0);
+					}
+					super.getRoot().writeChildren(writer);
+					slabAllocator.writePages(writer);
+					writer.flush();
+				} finally {
+					super.detachedFiles.remove(super.manifest);
+					super.unlockAllocationGroups();
+					slabAllocator.unlockPages();
+				}
+				if (writer.getPosition() <= next.getAllocatedSize()) {
+					break;
+				}
+				size = writer.getPosition() + writer.getPosition() / 4 + TABLE_BLOCK_SIZE;
+			}
+			writeExtentTable(extents);
+			writer.moveCopiedChildren();
+			
+			//the new manifest takes the place of the old one
+			ArrayList<AllocatedSpaceMarker> oldSegments = new ArrayList<AllocatedSpaceMarker>(super.manifest.dataSegments);
+			super.lockAllocationGroups();
+			try {
+				for (AllocatedSpaceMarker segment : oldSegments) {
+					segment.deallocate();
+				}
+				for (AllocatedSpaceMarker segment : new ArrayList<AllocatedSpaceMarker>(next.dataSegments)) {
+					segment.transferTo(super.manifest);
+				}
+			} finally {
+				super.unlockAllocationGroups();
+			}
+			super.manifest.dataSize = super.manifest.getAllocatedSize();
+			super.manifest.hasData = true;
+			this.manifestLength = writer.getPosition();
+			metrics.record(IOMetrics.FLUSH, startTime, writer.getPosition());
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			//whatever was not handed over to the manifest
+			long allocatedSize = next.getAllocatedSize();
+			if (allocatedSize > 0) {
+				next.changeSize(-allocatedSize);
+			}
+			manifestLock.unlock();
+		}
+	}
+
+	@Override
+	protected void moveData(long sourceIndex, long destinationIndex, long length) {
+		ChainedMappedBuffer buffer = this.buffer.duplicate();
+		byte[] data = new byte[(int) Math.min(length, 64 * 1024)];
+		for (long offset = 0; offset < length; offset += data.length) {
+			int len = (int) Math.min(data.length, length - offset);
+			buffer.get(sourceIndex + offset, data, 0, len);
+			buffer.put(destinationIndex + offset, data, 0, len);
 		}
 	}
 
 	public class MemoryFileOutputStream extends OutputStream {
-		private final MappedByteBuffer buffer;
+		private final ChainedMappedBuffer buffer;
 		private final VirtualFile file;
 		
-		private int fileIndex;
-		private int diskIndex;
-		
 		//private final int totalSegments;
 		private AllocatedSpaceMarker currentSegment;
 		private int currentSegmentNumber;
-		private int indexInSegment;
+		private long indexInSegment;
 		
-		private int dataSize;
+		private long dataSize;
+		//a file being rewritten will most likely end up about as large as it was
+		private final long sizeHint;
+		//the file's relocations as of when the current segment was found
+		private int relocations;
 		
 		
 		//unused
 		private MemoryFileOutputStream() {
 			this.buffer = null;
 			this.file = null;
+			this.sizeHint = 0;
 			//this.totalSegments = 0;
 		}
 		
@@ -182,85 +558,63 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 			file.setLastModified(System.currentTimeMillis());
 			
 			this.file = file;
-			this.buffer = ((MemoryBackedVirtualDisk) file.getContainingDisk()).buffer;
+			this.buffer = ((MemoryBackedVirtualDisk) file.getContainingDisk()).buffer.duplicate();
+			this.sizeHint = file.getDataSize();
 			
 		//	this.totalSegments = file.dataSegments.size();
 			if (!file.hasData) {
-				file.changeSize(file.getContainingDisk().getDefaultSegmentSize());
+				file.changeSize(file.getContainingDisk().getGrowthSize(file, sizeHint));
 			}
 			this.currentSegment = file.dataSegments.get(0);
 			this.currentSegmentNumber = 0;
 			this.indexInSegment = 0;
 			this.dataSize = 0;
+			this.relocations = file.relocations;
 		}
 		
 		
 		
 		@Override
 		public void write(int b) throws IOException {
-			int bufferIndex = getBufferIndex();
-			if (indexIsValid(bufferIndex)) {
-				buffer.put(bufferIndex, (byte) b);
-			} else if (advanceToNextSegment()){
+			long startTime = metrics.start();
+			Lock lock = file.getWriteLock();
+			lock.lock();
+			try {
+				ensureAvailable();
 				buffer.put(getBufferIndex(), (byte) b);
-			} else {
-				this.file.changeSize(this.file.getContainingDisk().getDefaultSegmentSize());
-				write(b);
+				this.indexInSegment++;
+				this.dataSize++;
+			} finally {
+				lock.unlock();
 			}
-			this.indexInSegment++;
-			this.dataSize++;
+			metrics.record(IOMetrics.WRITE, startTime, 1);
 		}
 		
 		@Override
 		public void write(byte[] b) throws IOException {
-			int bufferIndex = getBufferIndex();
-			int sizeWritten = 0;
-			if (indexIsValid(bufferIndex) && indexIsValid(bufferIndex + b.length)) {
-				buffer.position(bufferIndex);
-				buffer.put(b);
-				sizeWritten = b.length;
-			} else if (available() > 0) {
-				int available = available();
-				buffer.position(bufferIndex);
-				buffer.put(Arrays.copyOf(b, available));
-				indexInSegment += available; //special case (splits array into two different arrays for writing across separate segments)
-				dataSize += available;
-				write(Arrays.copyOfRange(b, available + 1, b.length));
-			} else if (advanceToNextSegment()) {
-				write(b);
-			} else {
-				this.file.changeSize(this.file.getContainingDisk().getDefaultSegmentSize());
-				write(b);
-			}
-
-			indexInSegment += sizeWritten;
-			this.dataSize += sizeWritten;
+			write(b, 0, b.length);
 		}
 		
 		@Override
 		public void write(byte[] b, int off, int len) throws IOException{
-			int bufferIndex = getBufferIndex();
-			int sizeWritten = 0;
-			if (indexIsValid(bufferIndex) && indexIsValid(bufferIndex + len)) {
-				buffer.position(bufferIndex);
-				buffer.put(b, off, len);
-				sizeWritten = b.length;
-			} else if (available() > 0) {
-				int available = available();
-				buffer.position(bufferIndex);
-				buffer.put(Arrays.copyOf(b, off + available));// possibly incorrect implementation (TEST!)
-				indexInSegment += available; //special case (splits array into two different arrays for writing across separate segments)
-				dataSize += available;
-				write(Arrays.copyOfRange(b, off + available + 1, len));
-			} else if (advanceToNextSegment()) {
-				write(b);
-			} else {
-				this.file.changeSize(this.file.getContainingDisk().getDefaultSegmentSize());
-				write(b, off, len);
-				
+			//writes are split at segment boundaries and copied straight into the mapped chunks
+			long startTime = metrics.start();
+			int length = len;
+			Lock lock = file.getWriteLock();
+			lock.lock();
+			try {
+				while (len > 0) {
+					int sizeWritten = (int) Math.min(len, ensureAvailable());
+					buffer.put(getBufferIndex(), b, off, sizeWritten);
+					indexInSegment += sizeWritten;
+					this.dataSize += sizeWritten;
+					off += sizeWritten;
+					len -= sizeWritten;
+				}
+			} finally {
+				lock.unlock();
 			}
-			indexInSegment += sizeWritten;
-			this.dataSize += sizeWritten;
+			metrics.record(IOMetrics.WRITE, startTime, length);
 		}
 		
 		@Override 
@@ -269,13 +623,50 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 		
 		@Override
 		public void close() throws IOException {
-			file.changeSize(this.dataSize - file.getAllocatedSize() + 1);  //gets rid of the extra preallocated space
+			long startTime = metrics.start();
+			Lock lock = file.getWriteLock();
+			lock.lock();
+			try {
+				file.changeSize(this.dataSize - file.getAllocatedSize());  //gets rid of the extra preallocated space
+				file.dataSize = this.dataSize;
+			} finally {
+				lock.unlock();
+			}
 			super.close();
-			file.getContainingDisk().updateFileManifest();
+			file.getContainingDisk().logChange(MetadataJournal.EXTENTS, file);
+			metrics.record(IOMetrics.CLOSE, startTime, 0);
 		}
 		
-		private boolean indexIsValid(int index) {
-			return (this.currentSegment.endIndex >= index && this.currentSegment.beginIndex <= index && index + 1 < size );
+		//returns the room left in the current segment, growing the file if it has run out
+		private long ensureAvailable() throws IOException {
+			if (relocations != file.relocations) {
+				seek(this.dataSize);
+			}
+			long available;
+			while ((available = available()) < 1) {
+				if (!advanceToNextSegment()) {
+					long allocatedSize = file.getAllocatedSize();
+					long growth = file.getContainingDisk().getGrowthSize(file, sizeHint);
+					if (growth > 0) {
+						file.changeSize(growth);
+					}
+					if (file.getAllocatedSize() <= allocatedSize) {
+						throw new IOException("The virtual disk is full!");
+					}
+					//growing a small file can move it into another slot
+					seek(this.dataSize);
+				}
+			}
+			return available;
+		}
+		
+		//finds the position again after the file's segments were replaced, the end of the last segment if it is past them
+		private void seek(long position) {
+			this.relocations = file.relocations;
+			int segmentNumber = file.getSegmentNumber(position);
+			this.currentSegmentNumber = (segmentNumber < 0) ? file.dataSegments.size() - 1 : segmentNumber;
+			this.currentSegment = file.dataSegments.get(currentSegmentNumber);
+			this.indexInSegment = position - currentSegment.fileOffset;
 		}
 		
 		private boolean advanceToNextSegment() {
@@ -283,7 +674,6 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 				this.currentSegmentNumber++;
 				this.currentSegment = file.dataSegments.get(currentSegmentNumber);
 				this.indexInSegment = 0;
-				//this.buffer.position(this.currentSegment.beginIndex);
 				return true;
 			} else {
 				return false;
@@ -291,115 +681,126 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 			
 		}
 		
-		private int getBufferIndex() {
+		private long getBufferIndex() {
 			return currentSegment.beginIndex + indexInSegment;
 		}
 		
 		
-		private int available() throws IOException {
-			return currentSegment.getSize() - 1 - indexInSegment;
+		private long available() throws IOException {
+			return currentSegment.getSize() - indexInSegment;
 		}
 		
 	}
 	
 	public class MemoryFileInputStream extends InputStream {
-		private final MappedByteBuffer buffer;
+		private final ChainedMappedBuffer buffer;
 		private final VirtualFile file;
 		
 		private AllocatedSpaceMarker currentSegment;
 		private int currentSegmentNumber;
-		private int indexInSegment;
+		private long indexInSegment;
+		private long remaining;
+		private int relocations;
 
 		
 		public MemoryFileInputStream(VirtualFile file) {
 			this.file = file;
-			this.buffer = ((MemoryBackedVirtualDisk) file.getContainingDisk()).buffer;
+			this.buffer = ((MemoryBackedVirtualDisk) file.getContainingDisk()).buffer.duplicate();
 			
-			this.currentSegment = file.dataSegments.get(0);
+			this.currentSegment = (file.dataSegments.isEmpty()) ? null : file.dataSegments.get(0);
 			this.currentSegmentNumber = 0;
 			this.indexInSegment = 0;
+			this.remaining = file.getDataSize();
+			this.relocations = file.relocations;
 		}
 		
 		@Override
 		public int read() throws IOException {
-			int bufferIndex = getBufferIndex();
-			byte storedByte;
-			if (indexIsValid(bufferIndex)) {
-				storedByte = buffer.get(bufferIndex);
-			} else if (advanceToNextSegment()){
-				storedByte = buffer.get(getBufferIndex());
-			} else {
-				storedByte = -1;
+			long startTime = metrics.start();
+			int storedByte;
+			Lock lock = file.getReadLock();
+			lock.lock();
+			try {
+				if (remaining < 1 || segmentAvailable() < 1) {
+					storedByte = -1;
+				} else {
+					storedByte = buffer.get(getBufferIndex()) & 0xFF;
+					this.indexInSegment++;
+					this.remaining--;
+				}
+			} finally {
+				lock.unlock();
 			}
-			this.indexInSegment++;
+			metrics.record(IOMetrics.READ, startTime, (storedByte < 0) ? 0 : 1);
 			return storedByte;
 		}
 		
 		@Override
 		public int read(byte[] b) throws IOException {
-			int bufferIndex = getBufferIndex();
-			int sizeRead;
-			if (indexIsValid(bufferIndex) && indexIsValid(bufferIndex + b.length)) {
-				buffer.position(bufferIndex);
-				buffer.get(b);
-				sizeRead = b.length;
-			} else if ((sizeRead = available()) > 0) {
-				buffer.position(bufferIndex);
-				buffer.get(b);
-			} else if (advanceToNextSegment()) {
-				sizeRead = read(b);
-			} else {
-				sizeRead = -1;
-			}
-			indexInSegment += sizeRead;
-			return sizeRead;
+			return read(b, 0, b.length);
 		}
 		
 		@Override
 		public int read(byte[] b, int off, int len) throws IOException{
-			int bufferIndex = getBufferIndex();
-			int sizeRead;
-			if (indexIsValid(bufferIndex) && indexIsValid(bufferIndex + len)) {
-				buffer.position(bufferIndex);
-				buffer.get(b, off, len);
-				sizeRead = b.length;
-			} else if (available() > 0) {
-				buffer.position(bufferIndex);
-				buffer.get(b, off, len);
-				sizeRead = available();
-			} else if (advanceToNextSegment()) {
-				sizeRead = read(b, off, len);
-			} else {
-				sizeRead = -1;
+			if (len == 0) {
+				return 0;
 			}
-			indexInSegment += sizeRead;
-			return sizeRead;
+			long startTime = metrics.start();
+			int totalRead = 0;
+			Lock lock = file.getReadLock();
+			lock.lock();
+			try {
+				while (len > 0 && remaining > 0) {
+					long available = segmentAvailable();
+					if (available < 1) {
+						break;
+					}
+					int sizeRead = (int) Math.min(Math.min(len, available), remaining);
+					buffer.get(getBufferIndex(), b, off, sizeRead);
+					indexInSegment += sizeRead;
+					remaining -= sizeRead;
+					totalRead += sizeRead;
+					off += sizeRead;
+					len -= sizeRead;
+				}
+			} finally {
+				lock.unlock();
+			}
+			metrics.record(IOMetrics.READ, startTime, totalRead);
+			return (totalRead == 0) ? -1 : totalRead;
 		}
 		
 		@Override 
 		public long skip(long n) throws IOException {
-			int bufferIndex = getBufferIndex();
-			int sizeSkipped;
-			if (indexIsValid(bufferIndex) && indexIsValid( (bufferIndex + (int) n))) {
-				sizeSkipped = (int) n;
-			} else if (available() > 0) {
-				sizeSkipped = available();
-			} else if (advanceToNextSegment()) {
-				sizeSkipped = (int) skip(n);
-			} else {
-				sizeSkipped = -1;
+			long sizeSkipped = 0;
+			Lock lock = file.getReadLock();
+			lock.lock();
+			try {
+				while (n > 0 && remaining > 0) {
+					long available = segmentAvailable();
+					if (available < 1) {
+						break;
+					}
+					long size = Math.min(Math.min(n, available), remaining);
+					indexInSegment += size;
+					remaining -= size;
+					sizeSkipped += size;
+					n -= size;
+				}
+			} finally {
+				lock.unlock();
 			}
-			indexInSegment += sizeSkipped;
 			return sizeSkipped;
 		}
 		
 		@Override
 		public int available() throws IOException {
-			return currentSegment.getSize() - 1 - indexInSegment;
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
 		}
 		
 		@Override
 		public void close() throws IOException {
+			metrics.record(IOMetrics.CLOSE, metrics.start(), 0);
 		}
 		
 		
@@ -424,8 +825,21 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 			return false;
 		}
 		
-		private boolean indexIsValid(int index) {
-			return (this.currentSegment.endIndex >= index && this.currentSegment.beginIndex <= index && index + 1 < size);
+		//returns the room left in the current segment, moving on to the next one if it has run out
+		private long segmentAvailable() {
+			if (currentSegment != null && relocations != file.relocations) {
+				seek(currentSegment.fileOffset + indexInSegment);
+			}
+			if (currentSegment == null) {
+				return 0;
+			}
+			long available;
+			while ((available = currentSegment.getSize() - indexInSegment) < 1) {
+				if (!advanceToNextSegment()) {
+					return 0;
+				}
+			}
+			return available;
 		}
 		
 		private boolean advanceToNextSegment() {
@@ -433,7 +847,6 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 				this.currentSegmentNumber++;
 				this.currentSegment = file.dataSegments.get(currentSegmentNumber);
 				this.indexInSegment = 0;
-				//this.buffer.position(this.currentSegment.beginIndex);
 				return true;
 			} else {
 				return false;
@@ -441,50 +854,550 @@ public class MemoryBackedVirtualDisk extends VirtualDisk{
 			
 		}
 		
-		private int getBufferIndex() {
+		private long getBufferIndex() {
 			return currentSegment.beginIndex + indexInSegment;
 		}
 		
+		//finds the position again after the file's segments were replaced, the end of the last segment if it is past them
+		private void seek(long position) {
+			this.relocations = file.relocations;
+			int segmentNumber = file.getSegmentNumber(position);
+			this.currentSegmentNumber = (segmentNumber < 0) ? file.dataSegments.size() - 1 : segmentNumber;
+			if (currentSegmentNumber < 0) {
+				this.currentSegment = null;
+				return;
+			}
+			this.currentSegment = file.dataSegments.get(currentSegmentNumber);
+			this.indexInSegment = position - currentSegment.fileOffset;
+		}
+		
 	}
 	
-	public class ManifestOutputStream extends MemoryFileOutputStream {
+	/**
+	 * All reads and writes are done at absolute disk indexes, so positional calls never touch a shared position.
+	 * The modes are those of RandomAccessFile: "rwd" forces every write out to the disk file before it returns, and
+	 * "rws" commits the file's extents to the journal as well.
+	 */
+	public class MemoryFileChannel extends FileChannel {
+		private static final long TRANSFER_WINDOW = 1024 * 1024;
+		
+		private final ChainedMappedBuffer buffer;
+		private final VirtualFile file;
+		
+		private final boolean readOnly;
+		private final boolean syncData;
+		private final boolean syncMetadata;
+		
+		private long position = 0;
+		private boolean modified = false;
+		
+		public MemoryFileChannel(VirtualFile file) {
+			this(file, "rw");
+		}
+		
+		public MemoryFileChannel(VirtualFile file, String mode) {
+			this.file = file;
+			this.buffer = ((MemoryBackedVirtualDisk) file.getContainingDisk()).buffer;
+			this.readOnly = mode.equals("r");
+			this.syncData = mode.equals("rwd") || mode.equals("rws");
+			this.syncMetadata = mode.equals("rws");
+		}
+		
+		@Override
+		public synchronized int read(ByteBuffer dst) throws IOException {
+			int sizeRead = read(dst, position);
+			if (sizeRead > 0) {
+				position += sizeRead;
+			}
+			return sizeRead;
+		}
 		
-		public ManifestOutputStream() throws IOException {
-			super(VirtualDisk.getPrimaryDisk().manifest);
+		@Override
+		public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			long totalRead = 0;
+			for (int i = offset; i < offset + length; i++) {
+				int remaining = dsts[i].remaining();
+				int sizeRead = read(dsts[i]);
+				if (sizeRead < 0) {
+					return (totalRead == 0) ? -1 : totalRead;
+				}
+				totalRead += sizeRead;
+				if (sizeRead < remaining) {
+					break;
+				}
+			}
+			return totalRead;
 		}
 		
 		@Override
-		public void write(byte[] b) {
+		public int read(ByteBuffer dst, long position) throws IOException {
+			ensureOpen();
+			if (position < 0) throw new IllegalArgumentException("The position cannot be negative!");
+			long startTime = metrics.start();
+			int len;
+			Lock lock = file.getReadLock();
+			lock.lock();
 			try {
-				super.write(b);
-			} catch (IOException e) {
-				e.printStackTrace();
+				long dataSize = file.getDataSize();
+				len = (position >= dataSize) ? -1 : (int) Math.min(dst.remaining(), dataSize - position);
+				if (len > 0) {
+					transfer(position, dst, len, false);
+				}
+			} finally {
+				lock.unlock();
 			}
+			metrics.record(IOMetrics.READ, startTime, len);
+			return len;
 		}
 		
 		@Override
-		public void write(byte[] b, int off, int len) {
+		public synchronized int write(ByteBuffer src) throws IOException {
+			int sizeWritten = write(src, position);
+			position += sizeWritten;
+			return sizeWritten;
+		}
+		
+		@Override
+		public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			long totalWritten = 0;
+			for (int i = offset; i < offset + length; i++) {
+				totalWritten += write(srcs[i]);
+			}
+			return totalWritten;
+		}
+		
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			ensureWriteable();
+			if (position < 0) throw new IllegalArgumentException("The position cannot be negative!");
+			long startTime = metrics.start();
+			int len = src.remaining();
+			Lock lock = file.getWriteLock();
+			lock.lock();
 			try {
-				super.write(b, off, len);
-			} catch (IOException e) {
-				e.printStackTrace();
+				long end = position + len;
+				if (!ensureAllocated(end)) {
+					throw new IOException("The virtual disk is full!");
+				}
+				if (position > file.dataSize) {
+					zeroFill(file.dataSize, position);
+				}
+				transfer(position, src, len, true);
+				if (end > file.dataSize) {
+					file.dataSize = end;
+				}
+			} finally {
+				lock.unlock();
 			}
+			metrics.record(IOMetrics.WRITE, startTime, len);
+			synchronize();
+			return len;
 		}
 		
+		@Override
+		public long position() throws IOException {
+			ensureOpen();
+			return position;
+		}
 		
 		@Override
-		public void close() throws IOException {
-			super.file.changeSize(super.dataSize - super.file.getAllocatedSize() + 1);  //gets rid of the extra preallocated space
-			for (int i = 0; i < super.file.dataSegments.size(); i++) {
-				AllocatedSpaceMarker marker = super.file.dataSegments.get(i);
-				long startIndex = marker.beginIndex;
-				long endIndex = marker.endIndex;
-				buffer.putLong(i * 16, startIndex);
-				buffer.putLong((i * 16) + 8, endIndex);
-			}
-			for (int i = super.file.dataSegments.size(); i < 64; i++) {
-				buffer.putLong(i * 16, Long.MIN_VALUE);
-				buffer.putLong((i * 16) + 8, Long.MIN_VALUE);
+		public synchronized FileChannel position(long newPosition) throws IOException {
+			ensureOpen();
+			if (newPosition < 0) throw new IllegalArgumentException("The position cannot be negative!");
+			this.position = newPosition;
+			return this;
+		}
+		
+		@Override
+		public long size() throws IOException {
+			ensureOpen();
+			return file.getDataSize();
+		}
+		
+		@Override
+		public synchronized FileChannel truncate(long size) throws IOException {
+			ensureWriteable();
+			if (size < 0) throw new IllegalArgumentException("The size cannot be negative!");
+			Lock lock = file.getWriteLock();
+			lock.lock();
+			try {
+				if (size < file.getDataSize()) {
+					file.dataSize = size;
+					file.changeSize(size - file.getAllocatedSize());
+					modified = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (position > size) {
+				position = size;
+			}
+			synchronize();
+			return this;
+		}
+		
+		@Override
+		public void force(boolean metaData) throws IOException {
+			ensureOpen();
+			if (metaData && modified) {
+				modified = false;
+				file.getContainingDisk().logChange(MetadataJournal.EXTENTS, file);
+				file.getContainingDisk().sync();
+			} else {
+				buffer.force();
+			}
+		}
+		
+		/**
+		 * Hands the target views straight onto the mapped extents, so nothing is copied through the heap.  The file's
+		 * lock is let go of before each view is written, so that the target can never wait on it, and the transfer
+		 * fails if the file gave up its space in the meantime.  Another virtual file is copied to extent by extent.
+		 */
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			ensureOpen();
+			if (position < 0 || count < 0) throw new IllegalArgumentException("Neither the position nor the count can be negative!");
+			if (target instanceof MemoryFileChannel) {
+				return ((MemoryFileChannel) target).copyToPosition(this, position, count);
+			}
+			long startTime = metrics.start();
+			long totalTransferred = 0;
+			try {
+				while (totalTransferred < count) {
+					long windowStart = position + totalTransferred;
+					ByteBuffer view;
+					int relocations;
+					Lock lock = file.getReadLock();
+					lock.lock();
+					try {
+						long end = Math.min(position + count, file.getDataSize());
+						if (windowStart >= end) {
+							break;
+						}
+						AllocatedSpaceMarker segment = file.dataSegments.get(file.getSegmentNumber(windowStart));
+						long length = Math.min(Math.min(end, segment.fileOffset + segment.getSize()) - windowStart, TRANSFER_WINDOW);
+						view = buffer.slice(segment.beginIndex + (windowStart - segment.fileOffset), length);
+						relocations = file.relocations;
+					} finally {
+						lock.unlock();
+					}
+					int viewSize = view.remaining();
+					int sizeWritten = target.write(view);
+					checkRelocations(relocations);
+					totalTransferred += sizeWritten;
+					if (sizeWritten < viewSize) {
+						break;
+					}
+				}
+			} finally {
+				metrics.record(IOMetrics.READ, startTime, totalTransferred);
+			}
+			return totalTransferred;
+		}
+		
+		//reads straight into views of the mapped extents, allocating room a window at a time and never reading with the lock held
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			ensureWriteable();
+			if (position < 0 || count < 0) throw new IllegalArgumentException("Neither the position nor the count can be negative!");
+			if (src instanceof MemoryFileChannel) {
+				MemoryFileChannel source = (MemoryFileChannel) src;
+				synchronized (source) {
+					long sizeCopied = copy(source, source.position, position, count);
+					source.position += sizeCopied;
+					return sizeCopied;
+				}
+			}
+			long startTime = metrics.start();
+			long totalTransferred = 0;
+			long initialAllocatedSize = -1;
+			Lock lock = file.getWriteLock();
+			try {
+				boolean drained = false;
+				while (totalTransferred < count && !drained) {
+					long windowStart = position + totalTransferred;
+					ByteBuffer view;
+					int relocations;
+					lock.lock();
+					try {
+						if (windowStart > file.getDataSize()) {
+							break;
+						}
+						if (initialAllocatedSize < 0) {
+							initialAllocatedSize = file.getAllocatedSize();
+						}
+						long windowEnd = windowStart + Math.min(count - totalTransferred, TRANSFER_WINDOW);
+						if (!ensureAllocated(windowEnd)) {
+							throw new IOException("The virtual disk is full!");
+						}
+						AllocatedSpaceMarker segment = file.dataSegments.get(file.getSegmentNumber(windowStart));
+						long length = Math.min(windowEnd, segment.fileOffset + segment.getSize()) - windowStart;
+						view = buffer.slice(segment.beginIndex + (windowStart - segment.fileOffset), length);
+						relocations = file.relocations;
+					} finally {
+						lock.unlock();
+					}
+					int sizeRead = src.read(view);
+					lock.lock();
+					try {
+						checkRelocations(relocations);
+						if (sizeRead < 1) {
+							drained = true;
+						} else {
+							totalTransferred += sizeRead;
+							if (windowStart + sizeRead > file.dataSize) {
+								file.dataSize = windowStart + sizeRead;
+							}
+							file.setLastModified(System.currentTimeMillis());
+							modified = true;
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			} finally {
+				//gives back whatever was allocated for the last window and never read into
+				if (initialAllocatedSize >= 0) {
+					lock.lock();
+					try {
+						long surplus = file.getAllocatedSize() - Math.max(initialAllocatedSize, file.dataSize);
+						if (surplus > 0) {
+							file.changeSize(-surplus);
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+				metrics.record(IOMetrics.WRITE, startTime, totalTransferred);
+			}
+			synchronize();
+			return totalTransferred;
+		}
+		
+		//writes what another virtual file's channel transfers to this one at this channel's position, like a write would
+		private synchronized long copyToPosition(MemoryFileChannel source, long sourcePosition, long count) throws IOException {
+			long sizeCopied = copy(source, sourcePosition, position, count);
+			position += sizeCopied;
+			return sizeCopied;
+		}
+		
+		/**
+		 * Copies from another virtual file into this one, extent to extent.  Both files' locks are taken in the order
+		 * of their identity hash codes, so that copies going both ways between two files cannot deadlock, and a copy
+		 * within one file only takes its write lock.
+		 */
+		private long copy(MemoryFileChannel source, long sourcePosition, long position, long count) throws IOException {
+			source.ensureOpen();
+			ensureWriteable();
+			if (sourcePosition < 0 || position < 0 || count < 0) throw new IllegalArgumentException("Neither the positions nor the count can be negative!");
+			long startTime = metrics.start();
+			long length = 0;
+			VirtualFile from = source.file;
+			int order = Integer.compare(System.identityHashCode(from), System.identityHashCode(file));
+			Lock first = (from == file || order > 0) ? file.getWriteLock() : from.getReadLock();
+			Lock second = (from == file) ? null : ((order > 0) ? from.getReadLock() : file.getWriteLock());
+			Lock tieLock = (from != file && order == 0) ? TRANSFER_TIE_LOCK : null;
+			if (tieLock != null) {
+				tieLock.lock();
+			}
+			try {
+				first.lock();
+				try {
+					if (second != null) {
+						second.lock();
+					}
+					try {
+						long end = Math.min(sourcePosition + count, from.getDataSize());
+						if (sourcePosition < end) {
+							length = end - sourcePosition;
+							if (!ensureAllocated(position + length)) {
+								throw new IOException("The virtual disk is full!");
+							}
+							if (position > file.dataSize) {
+								zeroFill(file.dataSize, position);
+							}
+							if (from == file && sourcePosition < position + length && position < end) {
+								copyWithin(sourcePosition, position, length);
+							} else {
+								copyExtents(source, sourcePosition, position, length);
+							}
+							if (position + length > file.dataSize) {
+								file.dataSize = position + length;
+							}
+							file.setLastModified(System.currentTimeMillis());
+							modified = true;
+						}
+					} finally {
+						if (second != null) {
+							second.unlock();
+						}
+					}
+				} finally {
+					first.unlock();
+				}
+			} finally {
+				if (tieLock != null) {
+					tieLock.unlock();
+				}
+				metrics.record(IOMetrics.WRITE, startTime, length);
+			}
+			synchronize();
+			return length;
+		}
+		
+		//copies between views of the two files' extents, only call while holding both files' locks
+		private void copyExtents(MemoryFileChannel source, long sourcePosition, long position, long length) {
+			VirtualFile from = source.file;
+			while (length > 0) {
+				AllocatedSpaceMarker sourceSegment = from.dataSegments.get(from.getSegmentNumber(sourcePosition));
+				AllocatedSpaceMarker segment = file.dataSegments.get(file.getSegmentNumber(position));
+				long sourceOffset = sourcePosition - sourceSegment.fileOffset;
+				long offset = position - segment.fileOffset;
+				long size = Math.min(length, Math.min(sourceSegment.getSize() - sourceOffset, segment.getSize() - offset));
+				ByteBuffer view = source.buffer.slice(sourceSegment.beginIndex + sourceOffset, size);
+				int viewSize = view.remaining();
+				buffer.put(segment.beginIndex + offset, view, viewSize);
+				sourcePosition += viewSize;
+				position += viewSize;
+				length -= viewSize;
+			}
+		}
+		
+		//overlapping ranges of one file are copied through a small buffer, back to front when moving the data up, so nothing is overwritten before it is read
+		private void copyWithin(long sourcePosition, long position, long length) {
+			ByteBuffer staging = ByteBuffer.allocate((int) Math.min(length, 8192));
+			boolean backwards = position > sourcePosition;
+			long sizeCopied = 0;
+			while (sizeCopied < length) {
+				int size = (int) Math.min(staging.capacity(), length - sizeCopied);
+				long offset = backwards ? length - sizeCopied - size : sizeCopied;
+				staging.clear();
+				transfer(sourcePosition + offset, staging, size, false);
+				staging.flip();
+				transfer(position + offset, staging, size, true);
+				sizeCopied += size;
+			}
+		}
+		
+		//a view handed out without the lock may since have been given to another file
+		private void checkRelocations(int relocations) throws IOException {
+			if (relocations != file.relocations) {
+				throw new IOException("The virtual file was moved or truncated while it was being transferred!");
+			}
+		}
+		
+		//the file's extents can be moved or given up at any time, which a mapping could not follow
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			throw new UnsupportedOperationException("Virtual files cannot be mapped!");
+		}
+		
+		//see FileLockTable, the locks are only seen by channels on the same disk in this JVM
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			ensureLockable(shared);
+			return file.getLockTable(true).lock(this, position, size, shared, true);
+		}
+		
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			ensureLockable(shared);
+			return file.getLockTable(true).lock(this, position, size, shared, false);
+		}
+		
+		@Override
+		protected void implCloseChannel() throws IOException {
+			long startTime = metrics.start();
+			FileLockTable lockTable = file.getLockTable(false);
+			if (lockTable != null) {
+				lockTable.releaseAll(this);
+			}
+			if (modified) {
+				modified = false;
+				file.getContainingDisk().logChange(MetadataJournal.EXTENTS, file);
+			}
+			metrics.record(IOMetrics.CLOSE, startTime, 0);
+		}
+		
+		//copies len bytes between the buffer and the file's extents, starting at the given file position
+		private void transfer(long position, ByteBuffer data, int len, boolean write) {
+			for (int i = file.getSegmentNumber(position); len > 0; i++) {
+				AllocatedSpaceMarker segment = file.dataSegments.get(i);
+				long indexInSegment = position - segment.fileOffset;
+				int length = (int) Math.min(len, segment.getSize() - indexInSegment);
+				if (write) {
+					buffer.put(segment.beginIndex + indexInSegment, data, length);
+				} else {
+					buffer.get(segment.beginIndex + indexInSegment, data, length);
+				}
+				position += length;
+				len -= length;
+			}
+			if (write) {
+				file.setLastModified(System.currentTimeMillis());
+				modified = true;
+			}
+		}
+		
+		//the gap left by writing past the end of the file should read back as zeroes
+		private void zeroFill(long from, long to) {
+			ByteBuffer zeroes = ByteBuffer.allocate((int) Math.min(to - from, 4096));
+			while (from < to) {
+				int length = (int) Math.min(zeroes.capacity(), to - from);
+				zeroes.clear();
+				transfer(from, zeroes, length, true);
+				from += length;
+			}
+		}
+		
+		private void ensureOpen() throws ClosedChannelException {
+			if (!isOpen()) {
+				throw new ClosedChannelException();
+			}
+		}
+		
+		//grows the file to at least the given size, and gives back whatever it did grow by if it could not get all of it
+		private boolean ensureAllocated(long size) {
+			long allocatedSize = file.getAllocatedSize();
+			if (size <= allocatedSize) {
+				return true;
+			}
+			try {
+				if (file.changeSize(size - allocatedSize) && file.getAllocatedSize() >= size) {
+					return true;
+				}
+			} catch (IllegalArgumentException e) {
+				//larger than the free space
+			}
+			long growth = file.getAllocatedSize() - allocatedSize;
+			if (growth > 0) {
+				file.changeSize(-growth);
+			}
+			return false;
+		}
+		
+		//forces a write out in the synchronous modes, only call once the file's lock has been let go of
+		private void synchronize() throws IOException {
+			if (syncData) {
+				force(syncMetadata);
+			}
+		}
+		
+		//an exclusive lock can only be taken through a channel that can write, as with a native file
+		private void ensureLockable(boolean shared) throws IOException {
+			ensureOpen();
+			if (!shared && readOnly) {
+				throw new NonWritableChannelException();
+			}
+		}
+		
+		private void ensureWriteable() throws IOException {
+			ensureOpen();
+			if (readOnly) {
+				throw new NonWritableChannelException();
+			}
+			if (!file.getWriteable()) {
+				throw new IOException("This virtual file has been marked read only!");
 			}
 		}
 		
@@ -0,0 +1,473 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of metadata changes, so that creating, deleting or writing a file costs one small record
+ * instead of a rewrite of the whole manifest.  The manifest becomes a checkpoint: it records the journal's extents
+ * and the sequence number of the last record it covers, and a background thread writes a new one and starts the
+ * journal over once it is half full.  Mounting loads the checkpoint and replays every record written after it.
+ *
+ * Each record is its payload length, sequence number, type, payload and a CRC32 of all but the length.  Replay stops
+ * at the first record that is torn or left over from before the last checkpoint.
+ *
+ * With group commit turned on, changes are queued and written as one batch, and a file changed twice in a batch is
+ * only written once, as it was when the batch was committed.
+ */
+public class MetadataJournal {
+
+	protected static final int CREATE = 1;
+	protected static final int DELETE = 2;
+	protected static final int ATTRIBUTES = 3;
+	protected static final int EXTENTS = 4;
+	protected static final int RENAME = 5;
+
+	protected static final long DEFAULT_SIZE = 1024L * 1024L;
+	private static final int HEADER_SIZE = 4 + 8 + 1;
+	private static final int TRAILER_SIZE = 4;
+
+	private final MemoryBackedVirtualDisk disk;
+	protected final VirtualFile file;
+	private final ChainedMappedBuffer buffer;
+
+	//everything below is guarded by this journal's monitor
+	private long sequence;
+	private long position = 0;
+	private final CRC32 checksum = new CRC32();
+	private final LinkedHashSet<Change> pending = new LinkedHashSet<Change>();
+	private long pendingSince;
+	private Thread checkpointer;
+
+	private MetadataJournal(MemoryBackedVirtualDisk disk, VirtualFile file, long sequence) {
+		this.disk = disk;
+		this.file = file;
+		this.buffer = disk.buffer.duplicate();
+		this.sequence = sequence;
+	}
+
+	//returns null if the disk has no room for a journal, in which case every change rewrites the manifest
+	protected static MetadataJournal create(MemoryBackedVirtualDisk disk) {
+		VirtualFile file = VirtualFile.generateHiddenFile();
+		if (DEFAULT_SIZE > disk.getFreeSpace() / 4 || !file.changeSize(DEFAULT_SIZE)) {
+			file.changeSize(-file.getAllocatedSize());
+			return null;
+		}
+		return new MetadataJournal(disk, file, 0);
+	}
+
+	//the checkpoint header written at the start of the manifest
+	protected void writeCheckpoint(ManifestWriter writer) throws IOException {
+		writer.writeVarLong(sequence);
+		writer.writeVarLong(file.dataSegments.size());
+		for (AllocatedSpaceMarker segment : file.dataSegments) {
+			writer.writeVarLong(segment.beginIndex);
+			writer.writeVarLong(segment.getSize());
+		}
+	}
+
+	//used while mounting, returns null if the checkpoint has no journal
+	protected static MetadataJournal readCheckpoint(MemoryBackedVirtualDisk disk, ManifestReader reader) throws IOException {
+		long sequence = reader.readVarLong();
+		int count = reader.readVarInt();
+		if (count == 0) {
+			return null;
+		}
+		VirtualFile file = VirtualFile.generateHiddenFile();
+		for (int i = 0; i < count; i++) {
+			long beginIndex = reader.readVarLong();
+			AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(file, beginIndex, beginIndex + reader.readVarLong());
+		}
+		return new MetadataJournal(disk, file, sequence);
+	}
+
+	/**
+	 * The record is built from the file as it is when the journal's monitor is taken, so two changes to the same
+	 * file are always logged in the order they were made.  Must not be called while holding a file's lock.
+	 */
+	protected synchronized void log(int type, VirtualFile file) {
+		if (!disk.isGroupCommitEnabled()) {
+			long startTime = disk.metrics.start();
+			long startPosition = position;
+			append(type, file);
+			recordFlush(startTime, startPosition);
+			return;
+		}
+		if (pending.isEmpty()) {
+			this.pendingSince = System.currentTimeMillis();
+			notifyAll();
+		}
+		pending.add(new Change(type, file));
+		int threshold = disk.getCommitThreshold();
+		if (threshold > 0 && pending.size() >= threshold) {
+			commit();
+		}
+	}
+
+	//writes every queued change
+	protected synchronized void commit() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		long startTime = disk.metrics.start();
+		long startPosition = position;
+		Change[] changes = pending.toArray(new Change[pending.size()]);
+		pending.clear();
+		for (Change change : changes) {
+			if (!append(change.type, change.file)) {
+				break;
+			}
+		}
+		recordFlush(startTime, startPosition);
+	}
+	
+	//a write of records to the journal counts as a manifest flush, a checkpoint written instead is counted by the disk
+	private void recordFlush(long startTime, long startPosition) {
+		if (position > startPosition) {
+			disk.metrics.record(IOMetrics.FLUSH, startTime, position - startPosition);
+		}
+	}
+
+	/**
+	 * Moves the file and logs it straight away.  Queued changes are written with the paths their files have when
+	 * they are committed, so everything queued before the move is committed first, and nothing can be committed
+	 * between the move and its record.  A file the move replaced needs no record of its own, see apply.
+	 */
+	protected synchronized boolean rename(VirtualFile file, VirtualFile directory, String name, boolean replace) {
+		commit();
+		String path = file.getPath();
+		if (!file.move(directory, name, replace)) {
+			return false;
+		}
+		long startTime = disk.metrics.start();
+		long startPosition = position;
+		append(RENAME, file, path);
+		recordFlush(startTime, startPosition);
+		return true;
+	}
+
+	private boolean append(int type, VirtualFile file) {
+		return append(type, file, null);
+	}
+
+	//returns false if the record did not fit and a checkpoint was written instead
+	private boolean append(int type, VirtualFile file, String oldPath) {
+		byte[] record;
+		try {
+			record = encode(type, file, oldPath);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+		long capacity = this.file.getAllocatedSize();
+		if (position + record.length > capacity) {
+			//the change has already been made, so the checkpoint covers it just as well
+			disk.updateFileManifest();
+			return false;
+		}
+		write(position, record);
+		position += record.length;
+		if (position > capacity / 2) {
+			notifyAll();
+		}
+		return true;
+	}
+
+	//only call from the disk, while it writes the manifest that covers every change so far
+	protected synchronized void reset() {
+		this.position = 0;
+		pending.clear();
+	}
+
+	private boolean isHalfFull() {
+		return position > file.getAllocatedSize() / 2;
+	}
+
+	//how long until the queued changes are due, zero if there is nothing to wait for
+	private long getCommitDelay() {
+		long interval = disk.getCommitInterval();
+		if (pending.isEmpty() || interval == 0) {
+			return 0;
+		}
+		return Math.max(1, pendingSince + interval - System.currentTimeMillis());
+	}
+
+	private boolean isCommitDue() {
+		long interval = disk.getCommitInterval();
+		return !pending.isEmpty() && interval > 0 && System.currentTimeMillis() - pendingSince >= interval;
+	}
+
+	//wakes the background thread, which commits queued changes when they are due and checkpoints a half full journal
+	protected synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	protected synchronized void start() {
+		if (checkpointer != null) {
+			return;
+		}
+		this.checkpointer = new Thread("GlowDisk journal checkpointer") {
+
+			@Override
+			public void run() {
+				while (true) {
+					boolean checkpoint;
+					synchronized (MetadataJournal.this) {
+						try {
+							while (!isHalfFull() && !isCommitDue()) {
+								MetadataJournal.this.wait(getCommitDelay());
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+						if (isCommitDue()) {
+							commit();
+						}
+						checkpoint = isHalfFull();
+					}
+					if (checkpoint) {
+						disk.updateFileManifest();
+					}
+				}
+			}
+
+		};
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+
+	//a rename is written with the file's new path followed by its old one
+	private byte[] encode(int type, VirtualFile file, String oldPath) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ManifestWriter writer = new ManifestWriter(output);
+		for (int i = 0; i < HEADER_SIZE; i++) {
+			writer.writeByte(0);
+		}
+		writer.writeString(file.getPath());
+		if (type == CREATE || type == ATTRIBUTES) {
+			writer.writeByte(file.getFlags());
+			writer.writeSignedVarLong(file.getLastModified());
+		} else if (type == EXTENTS) {
+			file.writeExtents(writer);
+		} else if (type == RENAME) {
+			writer.writeString(oldPath);
+		}
+		for (int i = 0; i < TRAILER_SIZE; i++) {
+			writer.writeByte(0);
+		}
+		writer.flush();
+		byte[] record = output.toByteArray();
+		int payloadLength = record.length - HEADER_SIZE - TRAILER_SIZE;
+		writeInt(record, 0, payloadLength);
+		writeLong(record, 4, ++sequence);
+		record[12] = (byte) type;
+		checksum.reset();
+		checksum.update(record, 4, record.length - 4 - TRAILER_SIZE);
+		writeInt(record, record.length - TRAILER_SIZE, (int) checksum.getValue());
+		return record;
+	}
+
+	/**
+	 * Applies every record written after the checkpoint, and returns how many there were.  The tree and attributes
+	 * are changed in order.  Each changed file's extents are released all at once and then claimed again as its last
+	 * record left them, since a record can name space that a later record of another file gave up.
+	 */
+	protected synchronized int replay() {
+		Map<VirtualFile, byte[]> extents = new LinkedHashMap<VirtualFile, byte[]>();
+		long capacity = file.getAllocatedSize();
+		byte[] header = new byte[HEADER_SIZE];
+		int count = 0;
+		while (position + HEADER_SIZE + TRAILER_SIZE <= capacity) {
+			read(position, header);
+			int payloadLength = readInt(header, 0);
+			if (payloadLength < 0 || position + HEADER_SIZE + payloadLength + TRAILER_SIZE > capacity || readLong(header, 4) != sequence + 1) {
+				break;
+			}
+			byte[] record = new byte[HEADER_SIZE + payloadLength + TRAILER_SIZE];
+			read(position, record);
+			checksum.reset();
+			checksum.update(record, 4, record.length - 4 - TRAILER_SIZE);
+			if (readInt(record, record.length - TRAILER_SIZE) != (int) checksum.getValue()) {
+				break;
+			}
+			try {
+				apply(record[12], Arrays.copyOfRange(record, HEADER_SIZE, HEADER_SIZE + payloadLength), extents);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			sequence++;
+			position += record.length;
+			count++;
+		}
+
+		ArrayList<VirtualFile> changed = new ArrayList<VirtualFile>();
+		for (VirtualFile changedFile : extents.keySet()) {
+			if (!changedFile.deleted) {
+				for (int i = changedFile.dataSegments.size() - 1; i > -1; i--) {
+					changedFile.dataSegments.get(i).deallocate();
+				}
+				changed.add(changedFile);
+			}
+		}
+		disk.getSlabAllocator().freeEmptyPages();
+		for (VirtualFile changedFile : changed) {
+			try {
+				ManifestReader reader = new ManifestReader(new ByteArrayInputStream(extents.get(changedFile)));
+				reader.readString();
+				changedFile.readExtents(reader);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return count;
+	}
+
+	private void apply(int type, byte[] payload, Map<VirtualFile, byte[]> extents) throws IOException {
+		ManifestReader reader = new ManifestReader(new ByteArrayInputStream(payload));
+		String path = reader.readString();
+		if (type == CREATE) {
+			int flags = reader.readByte();
+			long lastModified = reader.readSignedVarLong();
+			VirtualFile parent = findParent(path);
+			String name = getName(path);
+			if (parent == null || !parent.isDirectory() || parent.hasChild(name)) {
+				return;
+			}
+			VirtualFile created = new VirtualFile(parent, name, (flags & VirtualFile.DIRECTORY) != 0);
+			created.setWriteable((flags & VirtualFile.WRITEABLE) != 0);
+			created.setLastModified(lastModified);
+			return;
+		}
+		if (type == RENAME) {
+			//a file at the new path can only have been there when the move was made if the move replaced it
+			VirtualFile moved = disk.getRoot().resolve(reader.readString());
+			VirtualFile parent = findParent(path);
+			if (moved != null && parent != null && parent.isDirectory()) {
+				moved.move(parent, getName(path), true);
+			}
+			return;
+		}
+		VirtualFile target = disk.getRoot().resolve(path);
+		if (target == null) {
+			return;
+		}
+		if (type == DELETE) {
+			target.delete();
+		} else if (type == ATTRIBUTES) {
+			target.setWriteable((reader.readByte() & VirtualFile.WRITEABLE) != 0);
+			target.setLastModified(reader.readSignedVarLong());
+		} else if (type == EXTENTS && !target.isDirectory()) {
+			//only the last record of each file is claimed
+			extents.remove(target);
+			extents.put(target, payload);
+		}
+	}
+
+	private VirtualFile findParent(String path) {
+		int endIndex = path.lastIndexOf(File.separatorChar);
+		return disk.getRoot().resolve((endIndex < 0) ? "" : path.substring(0, endIndex));
+	}
+
+	private static String getName(String path) {
+		return path.substring(path.lastIndexOf(File.separatorChar) + 1);
+	}
+
+	//journal positions are mapped onto the journal's own segments
+	private void write(long position, byte[] data) {
+		int offset = 0;
+		for (int i = file.getSegmentNumber(position); offset < data.length; i++) {
+			AllocatedSpaceMarker segment = file.dataSegments.get(i);
+			int length = (int) Math.min(data.length - offset, segment.fileOffset + segment.getSize() - position);
+			buffer.put(segment.beginIndex + position - segment.fileOffset, data, offset, length);
+			position += length;
+			offset += length;
+		}
+	}
+
+	private void read(long position, byte[] data) {
+		int offset = 0;
+		for (int i = file.getSegmentNumber(position); offset < data.length; i++) {
+			AllocatedSpaceMarker segment = file.dataSegments.get(i);
+			int length = (int) Math.min(data.length - offset, segment.fileOffset + segment.getSize() - position);
+			buffer.get(segment.beginIndex + position - segment.fileOffset, data, offset, length);
+			position += length;
+			offset += length;
+		}
+	}
+
+	private static class Change {
+		private final int type;
+		private final VirtualFile file;
+
+		private Change(int type, VirtualFile file) {
+			this.type = type;
+			this.file = file;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Change)) {
+				return false;
+			}
+			Change change = (Change) object;
+			return change.type == type && change.file == file;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(file) * 31 + type;
+		}
+	}
+
+	private static void writeInt(byte[] data, int index, int value) {
+		for (int i = 0; i < 4; i++) {
+			data[index + i] = (byte) (value >>> (24 - i * 8));
+		}
+	}
+
+	private static void writeLong(byte[] data, int index, long value) {
+		writeInt(data, index, (int) (value >>> 32));
+		writeInt(data, index + 4, (int) value);
+	}
+
+	private static int readInt(byte[] data, int index) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (data[index + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static long readLong(byte[] data, int index) {
+		return ((long) readInt(data, index) << 32) | (readInt(data, index + 4) & 0xFFFFFFFFL);
+	}
+
+}
@@ -0,0 +1,77 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the files that recently resolved paths led to, so that opening the same file again costs one hash lookup
+ * instead of a walk down the tree.  It is a fixed table with room for one file per slot, and a path simply takes
+ * over its slot from whatever was there.  A file is only returned while it has not been deleted and still has the
+ * path it is asked for, so a file that was deleted or moved, or sits below a directory that was, is never returned
+ * for its old path.  Paths that lead nowhere are not remembered, so creating a file has nothing to invalidate.
+ */
+public class PathCache {
+
+	protected static final int DEFAULT_SIZE = 4096;
+
+	private final AtomicReferenceArray<VirtualFile> files;
+	private final int mask;
+
+	//rounded up to a power of two
+	protected PathCache(int size) {
+		int length = Integer.highestOneBit(Math.max(1, size - 1) << 1);
+		this.files = new AtomicReferenceArray<VirtualFile>(length);
+		this.mask = length - 1;
+	}
+
+	protected int getSize() {
+		return files.length();
+	}
+
+	//returns null if the path is not in the cache
+	protected VirtualFile get(String path) {
+		VirtualFile file = files.get(getSlot(path));
+		if (file == null || file.deleted || !path.equals(file.getPath())) {
+			return null;
+		}
+		return file;
+	}
+
+	//paths that are not written the way the file's own path is, such as ones with a trailing separator, are left out
+	protected void put(String path, VirtualFile file) {
+		if (path.equals(file.getPath())) {
+			files.lazySet(getSlot(path), file);
+		}
+	}
+
+	//used once the file has been deleted or moved away from the given path
+	protected void invalidate(VirtualFile file, String path) {
+		files.compareAndSet(getSlot(path), file, null);
+	}
+
+	private int getSlot(String path) {
+		int hash = path.hashCode();
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+}
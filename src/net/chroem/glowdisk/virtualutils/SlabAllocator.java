@@ -0,0 +1,326 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Packs small files into shared pages so that creating and deleting them never splits or coalesces the free space.
+ * Every page is a segment of a hidden file, cut into equal slots of one size class.  The size classes are the powers
+ * of two from MINIMUM_SLOT_SIZE up to the small file threshold.  A small file keeps its data in a single slot, and
+ * is moved into a slot of a larger class when it outgrows it, or into an ordinary segment once it outgrows the
+ * threshold.  A page is given back to the disk as soon as its last slot is.
+ */
+public class SlabAllocator {
+
+	protected static final long MINIMUM_SLOT_SIZE = 512;
+	protected static final long MAXIMUM_THRESHOLD = 256L * 1024L;
+	protected static final long DEFAULT_THRESHOLD = 64L * 1024L;
+	private static final long PAGE_SIZE = 1024L * 1024L;
+
+	protected final VirtualFile pageFile;
+
+	private final ConcurrentSkipListMap<Long, SlabPage> pages = new ConcurrentSkipListMap<Long, SlabPage>();
+	private final SizeClass[] sizeClasses;
+	private volatile long threshold = DEFAULT_THRESHOLD;
+
+	protected SlabAllocator() {
+		this.pageFile = VirtualFile.generateHiddenFile();
+		int classCount = Long.numberOfTrailingZeros(MAXIMUM_THRESHOLD) - Long.numberOfTrailingZeros(MINIMUM_SLOT_SIZE) + 1;
+		this.sizeClasses = new SizeClass[classCount];
+		for (int i = 0; i < classCount; i++) {
+			sizeClasses[i] = new SizeClass(MINIMUM_SLOT_SIZE << i);
+		}
+	}
+
+	public long getThreshold() {
+		return this.threshold;
+	}
+
+	//rounded up to the next size class, zero turns the slabs off for new files
+	public void setThreshold(long threshold) {
+		if (threshold < 0 || threshold > MAXIMUM_THRESHOLD) throw new IllegalArgumentException("The small file threshold must be between 0 and " + MAXIMUM_THRESHOLD + " bytes!");
+		this.threshold = (threshold == 0) ? 0 : getSlotSize(threshold);
+	}
+
+	protected boolean accepts(VirtualFile file, long size) {
+		return size > 0 && size <= threshold && !file.isRoot();
+	}
+
+	//returns a slot holding size bytes, or null if no page could be found or made for it
+	protected AllocatedSpaceMarker allocateSlot(VirtualFile file, long size) {
+		SizeClass sizeClass = getSizeClass(getSlotSize(size));
+		sizeClass.lock.lock();
+		try {
+			SlabPage page = sizeClass.partialPages.isEmpty() ? null : sizeClass.partialPages.get(sizeClass.partialPages.size() - 1);
+			if (page == null) {
+				page = newPage(sizeClass.slotSize);
+				if (page == null) {
+					return null;
+				}
+				sizeClass.partialPages.add(page);
+			}
+			int slot = page.usedSlots.nextClearBit(0);
+			page.usedSlots.set(slot);
+			if (page.isFull()) {
+				sizeClass.partialPages.remove(page);
+			}
+			long beginIndex = page.segment.beginIndex + slot * page.slotSize;
+			return new AllocatedSpaceMarker(beginIndex, beginIndex + size, file, page);
+		} finally {
+			sizeClass.lock.unlock();
+		}
+	}
+
+	//gives the slot back to its page, and the page back to the disk once it is empty
+	protected void releaseSlot(AllocatedSpaceMarker marker) {
+		SlabPage page = marker.page;
+		SizeClass sizeClass = getSizeClass(page.slotSize);
+		sizeClass.lock.lock();
+		try {
+			boolean wasFull = page.isFull();
+			page.usedSlots.clear((int) ((marker.beginIndex - page.segment.beginIndex) / page.slotSize));
+			if (wasFull) {
+				sizeClass.partialPages.add(page);
+			}
+			if (page.usedSlots.isEmpty() && freePage(page)) {
+				sizeClass.partialPages.remove(page);
+			}
+		} finally {
+			sizeClass.lock.unlock();
+		}
+	}
+
+	//used while mounting or loading a directory, returns the slot holding the given indexes or null if they are not inside a page
+	protected AllocatedSpaceMarker claimSlot(VirtualFile file, long beginIndex, long endIndex) {
+		Map.Entry<Long, SlabPage> entry = pages.floorEntry(beginIndex);
+		if (entry == null) {
+			return null;
+		}
+		SlabPage page = entry.getValue();
+		int slot = (int) ((beginIndex - page.segment.beginIndex) / page.slotSize);
+		//the slot can already be marked as used by the manifest
+		if (slot >= page.slotCount || endIndex > page.segment.beginIndex + (slot + 1) * page.slotSize) {
+			return null;
+		}
+		SizeClass sizeClass = getSizeClass(page.slotSize);
+		sizeClass.lock.lock();
+		try {
+			page.usedSlots.set(slot);
+			if (page.isFull()) {
+				sizeClass.partialPages.remove(page);
+			}
+		} finally {
+			sizeClass.lock.unlock();
+		}
+		return new AllocatedSpaceMarker(beginIndex, endIndex, file, page);
+	}
+
+	//taken in the same order as allocating a new page takes them, so that no slot or page can change until unlockPages
+	protected void lockPages() {
+		for (SizeClass sizeClass : sizeClasses) {
+			sizeClass.lock.lock();
+		}
+		pageFile.getWriteLock().lock();
+	}
+	
+	protected void unlockPages() {
+		pageFile.getWriteLock().unlock();
+		for (int i = sizeClasses.length - 1; i > -1; i--) {
+			sizeClasses[i].lock.unlock();
+		}
+	}
+	
+	//only call while holding lockPages, each page is written with its used slots since not every file is read while mounting
+	protected void writePages(ManifestWriter writer) throws IOException {
+		Object[] pages = this.pages.values().toArray();
+		writer.writeVarLong(pages.length);
+		long previousEnd = 0;
+		for (Object object : pages) {
+			SlabPage page = (SlabPage) object;
+			writer.writeSignedVarLong(page.segment.beginIndex - previousEnd);
+			writer.writeVarLong(page.segment.endIndex - page.segment.beginIndex);
+			writer.writeByte(Long.numberOfTrailingZeros(page.slotSize));
+			byte[] usedSlots = page.usedSlots.toByteArray();
+			writer.writeVarLong(usedSlots.length);
+			writer.writeBytes(usedSlots, 0, usedSlots.length);
+			previousEnd = page.segment.endIndex;
+		}
+	}
+	
+	protected void readPages(ManifestReader reader) throws IOException {
+		int count = reader.readVarInt();
+		long previousEnd = 0;
+		for (int i = 0; i < count; i++) {
+			long beginIndex = previousEnd + reader.readSignedVarLong();
+			long endIndex = beginIndex + reader.readVarLong();
+			long slotSize = 1L << reader.readByte();
+			BitSet usedSlots = (reader.getVersion() < 3) ? null : BitSet.valueOf(reader.readBytes(reader.readVarInt()));
+			addPage(beginIndex, endIndex, slotSize, usedSlots);
+			previousEnd = endIndex;
+		}
+	}
+	
+	//used while replaying the journal, which can name a page that was freed after the checkpoint
+	protected void claimPage(long beginIndex, long endIndex, long slotSize) {
+		if (!pages.containsKey(beginIndex)) {
+			addPage(beginIndex, endIndex, slotSize, null);
+		}
+	}
+	
+	//used after replaying the journal, which can leave pages behind whose slots have all been given up
+	protected void freeEmptyPages() {
+		for (SizeClass sizeClass : sizeClasses) {
+			sizeClass.lock.lock();
+			try {
+				for (SlabPage page : new ArrayList<SlabPage>(sizeClass.partialPages)) {
+					if (page.usedSlots.isEmpty() && freePage(page)) {
+						sizeClass.partialPages.remove(page);
+					}
+				}
+			} finally {
+				sizeClass.lock.unlock();
+			}
+		}
+	}
+	
+	//used by disks with a JSON manifest
+	protected void loadPages(JsonArray array) {
+		for (JsonElement element : array) {
+			JsonObject object = element.getAsJsonObject();
+			long slotSize = object.get("slotSize").getAsLong();
+			if (Long.bitCount(slotSize) != 1) {
+				continue;
+			}
+			addPage(object.get("beginIndex").getAsLong(), object.get("endIndex").getAsLong(), slotSize, null);
+		}
+	}
+	
+	//used while mounting, older manifests leave the used slots to be claimed one by one
+	private void addPage(long beginIndex, long endIndex, long slotSize, BitSet usedSlots) {
+		if (slotSize < MINIMUM_SLOT_SIZE || slotSize > MAXIMUM_THRESHOLD) {
+			return;
+		}
+		AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(pageFile, beginIndex, endIndex);
+		SlabPage page = addPage(pageFile.getEndMarker(), slotSize);
+		if (usedSlots != null) {
+			page.usedSlots.or(usedSlots.get(0, page.slotCount));
+		}
+		if (!page.isFull()) {
+			getSizeClass(slotSize).partialPages.add(page);
+		}
+	}
+
+	//only call while holding the size class's lock
+	private SlabPage newPage(long slotSize) {
+		Lock lock = pageFile.getWriteLock();
+		lock.lock();
+		try {
+			if (AllocatedSpaceMarker.addNewAllocatedZoneToParent(pageFile, PAGE_SIZE) < 1) {
+				return null;
+			}
+			AllocatedSpaceMarker segment = pageFile.getEndMarker();
+			if (segment.getSize() < slotSize) {
+				segment.deallocate();
+				return null;
+			}
+			return addPage(segment, slotSize);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private SlabPage addPage(AllocatedSpaceMarker segment, long slotSize) {
+		//pages never grow, so there is no point in keeping room free behind them
+		segment.flexible = false;
+		SlabPage page = new SlabPage(segment, slotSize);
+		pages.put(segment.beginIndex, page);
+		return page;
+	}
+
+	//only call while holding the size class's lock
+	private boolean freePage(SlabPage page) {
+		Lock lock = pageFile.getWriteLock();
+		lock.lock();
+		try {
+			pages.remove(page.segment.beginIndex);
+			if (!page.segment.deallocate()) {
+				pages.put(page.segment.beginIndex, page);
+				return false;
+			}
+			if (!pageFile.dataSegments.isEmpty()) {
+				pageFile.getEndMarker().flexible = false;
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private SizeClass getSizeClass(long slotSize) {
+		return sizeClasses[Long.numberOfTrailingZeros(slotSize) - Long.numberOfTrailingZeros(MINIMUM_SLOT_SIZE)];
+	}
+
+	//the smallest size class that can hold the given size
+	private static long getSlotSize(long size) {
+		return Math.max(MINIMUM_SLOT_SIZE, Long.highestOneBit(size - 1) << 1);
+	}
+
+	private static class SizeClass {
+		private final long slotSize;
+		private final ReentrantLock lock = new ReentrantLock();
+		//pages of this class with at least one free slot
+		private final ArrayList<SlabPage> partialPages = new ArrayList<SlabPage>();
+
+		private SizeClass(long slotSize) {
+			this.slotSize = slotSize;
+		}
+	}
+
+	protected static class SlabPage {
+		protected final AllocatedSpaceMarker segment;
+		protected final long slotSize;
+		private final int slotCount;
+		private final BitSet usedSlots;
+
+		private SlabPage(AllocatedSpaceMarker segment, long slotSize) {
+			this.segment = segment;
+			this.slotSize = slotSize;
+			this.slotCount = (int) (segment.getSize() / slotSize);
+			this.usedSlots = new BitSet(slotCount);
+		}
+
+		private boolean isFull() {
+			return usedSlots.cardinality() >= slotCount;
+		}
+	}
+
+}
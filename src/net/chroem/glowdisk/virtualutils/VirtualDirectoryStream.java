@@ -0,0 +1,187 @@
+/**
+ * 
+    This file is a part of the GlowDisk utility.
+    Copyright (C) 2014 chroem
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.chroem.glowdisk.virtualutils;
+
+import java.nio.file.DirectoryStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lists a directory's children as they are iterated over instead of copying them out first.  The children are read
+ * straight from the directory's index, so files created or deleted while iterating may or may not be returned but
+ * never break the iteration.  An optional glob of the names to return is matched without allocating: it may use *
+ * for any run of characters, ? for any one character and \ to escape either.  A glob without wildcards is a single
+ * lookup, and the literal prefix of any other glob is checked before the rest of it.
+ */
+public class VirtualDirectoryStream implements DirectoryStream<VirtualFile> {
+
+	private final VirtualFile directory;
+	private final String glob;
+	//the number of characters of the glob that come before its first wildcard
+	private final int prefixLength;
+	//the name the glob stands for, or null if it has wildcards
+	private final String name;
+
+	private volatile boolean closed = false;
+	private boolean iterated = false;
+
+	//a null glob returns every child
+	protected VirtualDirectoryStream(VirtualFile directory, String glob) {
+		this.directory = directory;
+		this.glob = glob;
+		int prefixLength = 0;
+		StringBuilder name = new StringBuilder();
+		if (glob != null) {
+			for (int i = 0; i < glob.length(); i++) {
+				char c = glob.charAt(i);
+				if (c == '*' || c == '?') {
+					name = null;
+					break;
+				}
+				if (c == '\\' && i + 1 < glob.length()) {
+					c = glob.charAt(++i);
+				}
+				name.append(c);
+				prefixLength = i + 1;
+			}
+		}
+		this.prefixLength = prefixLength;
+		this.name = (glob == null || name == null) ? null : name.toString();
+	}
+
+	@Override
+	public synchronized Iterator<VirtualFile> iterator() {
+		if (closed) throw new IllegalStateException("The directory stream has been closed!");
+		if (iterated) throw new IllegalStateException("The directory stream can only be iterated over once!");
+		this.iterated = true;
+		return new ChildIterator(directory.getChildIterator(name));
+	}
+
+	@Override
+	public void close() {
+		this.closed = true;
+	}
+
+	protected boolean accepts(VirtualFile file) {
+		if (file.deleted) {
+			return false;
+		}
+		if (glob == null || name != null) {
+			return true;
+		}
+		String name = file.getName();
+		int n = matchPrefix(name);
+		return n > -1 && matches(glob, prefixLength, name, n);
+	}
+
+	//returns how much of the name the glob's prefix covers, or -1 if the name does not start with it
+	private int matchPrefix(String name) {
+		int n = 0;
+		for (int i = 0; i < prefixLength; i++, n++) {
+			char c = glob.charAt(i);
+			if (c == '\\') {
+				c = glob.charAt(++i);
+			}
+			if (n >= name.length() || name.charAt(n) != c) {
+				return -1;
+			}
+		}
+		return n;
+	}
+
+	//matches the glob from index g against the name from index n, going back to the last * on a mismatch
+	private static boolean matches(String glob, int g, String name, int n) {
+		int starGlob = -1;
+		int starName = -1;
+		while (n < name.length()) {
+			if (g < glob.length()) {
+				char c = glob.charAt(g);
+				if (c == '*') {
+					starGlob = ++g;
+					starName = n;
+					continue;
+				}
+				if (c == '?') {
+					g++;
+					n++;
+					continue;
+				}
+				int next = g + 1;
+				if (c == '\\' && next < glob.length()) {
+					c = glob.charAt(next++);
+				}
+				if (c == name.charAt(n)) {
+					g = next;
+					n++;
+					continue;
+				}
+			}
+			if (starGlob < 0) {
+				return false;
+			}
+			g = starGlob;
+			n = ++starName;
+		}
+		while (g < glob.length() && glob.charAt(g) == '*') {
+			g++;
+		}
+		return g == glob.length();
+	}
+
+	private class ChildIterator implements Iterator<VirtualFile> {
+
+		private final Iterator<VirtualFile> children;
+		private VirtualFile next;
+
+		private ChildIterator(Iterator<VirtualFile> children) {
+			this.children = children;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !closed && children.hasNext()) {
+				VirtualFile child = children.next();
+				if (accepts(child)) {
+					this.next = child;
+				}
+			}
+			return next != null && !closed;
+		}
+
+		@Override
+		public VirtualFile next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			VirtualFile next = this.next;
+			this.next = null;
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
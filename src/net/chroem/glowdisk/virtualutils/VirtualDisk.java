@@ -20,18 +20,27 @@
 
 package net.chroem.glowdisk.virtualutils;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -39,30 +48,70 @@ import com.google.gson.annotations.Expose;
 
 import net.chroem.glowdisk.virtualutils.AllocatedSpaceMarker;
 import net.chroem.glowdisk.virtualutils.FreeSpaceMarker;
-import net.chroem.glowdisk.virtualutils.VirtualFile.FilePathMarker;
 
 
 public abstract class VirtualDisk {
 	
 	
 	//private final String rootPath;
-	@Expose private final int size;
+	@Expose private final long size;
 	
 	protected final ArrayList<VirtualFile> toBeDeleted = new ArrayList<VirtualFile>();
+	//hidden files holding space that no file in the tree owns yet, guarded by the manifest's lock
+	protected final ArrayList<VirtualFile> detachedFiles = new ArrayList<VirtualFile>();
 	
 	private static VirtualDisk primaryDisk;
 	@Expose private final VirtualFile root;
 	protected final VirtualFile manifest;
+	private final SlabAllocator slabAllocator;
+	
+	//free space is striped across allocation groups so that concurrent writers rarely contend
+	private static final long MINIMUM_GROUP_SIZE = 64L * 1024L * 1024L;
+	private static final int MAXIMUM_GROUPS = 64;
+	
+	protected volatile AllocationGroup[] allocationGroups;
+	//the length of each group's stripe of the disk, or zero until the free space has been striped
+	private volatile long groupSize = 0;
+	
+	//set while mounting, so that the extents read from the manifest can be claimed in one sorted pass
+	private ArrayList<AllocatedSpaceMarker> deferredSegments;
+	
+	private volatile GrowthPolicy growthPolicy = new ExponentialGrowthPolicy();
+	
+	//null while background compaction is off
+	private Compactor compactor;
+	
+	//null while the cache is turned off
+	private volatile PathCache pathCache = new PathCache(PathCache.DEFAULT_SIZE);
+	
+	//group commit is off while both are zero
+	private volatile long commitInterval = 0;
+	private volatile int commitThreshold = 0;
+	
+	//the free space is counted per allocation group, and everything allocated to files is counted here
+	private final AtomicLong allocatedSpace = new AtomicLong();
 	
-	protected ArrayList<FreeSpaceMarker> emptySpace = new ArrayList<FreeSpaceMarker>();	
+	//counted since mounting for the allocator statistics, see AllocatorStatistics
+	protected final AtomicLong allocations = new AtomicLong();
+	protected final AtomicLong allocationRetries = new AtomicLong();
+	protected final AtomicLong allocationFailures = new AtomicLong();
+	protected final AtomicLong reservedSpaceFallbacks = new AtomicLong();
 	
-	public VirtualDisk(int size) {
+	protected final IOMetrics metrics = new IOMetrics();
+	
+	//the names this disk's MBeans were registered under, empty while they are not
+	private final List<ObjectName> mBeanNames = new ArrayList<ObjectName>();
+	
+	public VirtualDisk(long size) {
 		//this.rootPath = root.replace(File.separator, "");
 		VirtualDisk.primaryDisk = this;
 		this.size = size;
 		this.root = VirtualFile.generateRoot(this);
 		this.manifest = VirtualFile.generateManifest();
-		emptySpace.add(FreeSpaceMarker.generateRoot(this));
+		this.slabAllocator = new SlabAllocator();
+		AllocationGroup rootGroup = new AllocationGroup(0);
+		rootGroup.addMarker(FreeSpaceMarker.generateRoot(this, rootGroup));
+		this.allocationGroups = new AllocationGroup[] {rootGroup};
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			
 			@Override
@@ -82,9 +131,23 @@ public abstract class VirtualDisk {
 	
 	public abstract OutputStream getOutputStream(VirtualFile file) throws IOException;
 	public abstract InputStream getInputStream(VirtualFile file);
+	//takes the same modes as RandomAccessFile
+	public abstract FileChannel getChannel(VirtualFile file, String mode) throws IOException;
 	protected abstract void updateFileManifest();
+	//records a change to the tree or to a file's attributes or extents, see MetadataJournal
+	protected abstract void logChange(int type, VirtualFile file);
+	//moves the file with VirtualFile.move, and records it like logChange does
+	protected abstract boolean rename(VirtualFile file, VirtualFile directory, String name, boolean replace);
+	//copies data between two allocated regions of the disk
+	protected abstract void moveData(long sourceIndex, long destinationIndex, long length);
+	//commits any queued metadata changes and forces everything written so far out to the disk file
+	public abstract void sync();
 	
 
+	public FileChannel getChannel(VirtualFile file) throws IOException {
+		return getChannel(file, "rw");
+	}
+	
 	public static boolean isEnabled() {
 		return VirtualDisk.primaryDisk != null;
 	}
@@ -93,75 +156,454 @@ public abstract class VirtualDisk {
 		return VirtualDisk.primaryDisk;
 	}
 	
-	public int getFreeSpace() {
-		int freeSpace = 0;
-		for (FreeSpaceMarker marker : emptySpace) {
-			freeSpace += marker.getSize();
+	public long getFreeSpace() {
+		long freeSpace = 0;
+		for (AllocationGroup group : allocationGroups) {
+			freeSpace += group.getFreeSpace();
 		}
 		return freeSpace;
 	}
 	
-	public int getReservedSpace() {
-		int reservedSpace = 0;
-		for (FreeSpaceMarker marker : emptySpace) {
-			reservedSpace += marker.getReserved();
-		}
-		return reservedSpace;
+	/**
+	 * The room kept free behind files for them to grow into.  Each file reserves space in proportion to its
+	 * size and the free space left (see FreeSpaceMarker.getReserved), so the total is worked out from the
+	 * allocated space instead of asking every marker.  Reservations that only fit partway into the zone behind
+	 * a file are counted before they are cut down.
+	 */
+	public long getReservedSpace() {
+		long freeSpace = getFreeSpace();
+		return Math.min(freeSpace, (long) ((4.0 * (double) allocatedSpace.get() * (double) freeSpace) / (double) size));
 	}
 	
-	public int getUnreservedSpace() {
+	public long getUnreservedSpace() {
 		return getFreeSpace() - getReservedSpace();
 	}
 	
-	public int getSize() {
+	public long getSize() {
 		return this.size;
 	}
 	
+	public long getAllocatedSpace() {
+		return allocatedSpace.get();
+	}
+	
+	protected void adjustAllocatedSpace(long size) {
+		allocatedSpace.addAndGet(size);
+	}
+	
 	//recursively allocate!
 	
 	
 	//add a data record segment
-	private FreeSpaceMarker allocateSpace(int startIndex, int endIndex) {
+	private FreeSpaceMarker allocateSpace(long startIndex, long endIndex) {
 		return allocateSpaceWithReserved(startIndex, endIndex, null);
 	}
 	
-	protected static FreeSpaceMarker allocateSpaceWithReserved(int startIndex, int endIndex, AllocatedSpaceMarker allocatedMarker) {
+	protected static FreeSpaceMarker allocateSpaceWithReserved(long startIndex, long endIndex, AllocatedSpaceMarker allocatedMarker) {
 		VirtualDisk disk = allocatedMarker.parent.getContainingDisk();
-		for (int i = 0; i < disk.emptySpace.size(); i++) {
-			FreeSpaceMarker marker = disk.emptySpace.get(i);
-			if (marker.leftBound < startIndex && marker.rightBound > endIndex) {
-				int oldRightBound = marker.rightBound;
-				marker.rightBound = startIndex - 1;
-				FreeSpaceMarker newMarker = new FreeSpaceMarker(endIndex + 1, oldRightBound, allocatedMarker);
-				disk.emptySpace.add(i + 1, newMarker);
-				return newMarker;
+		AllocationGroup[] groups = disk.allocationGroups;
+		//the markers around the indexes are almost always in the groups whose stripes they fall in
+		FreeSpaceMarker marker = claim(groups[disk.getGroupIndex(startIndex, groups.length)], startIndex, endIndex, allocatedMarker, false);
+		if (marker == null) {
+			marker = claim(groups[disk.getGroupIndex(endIndex + 1, groups.length)], startIndex, endIndex, allocatedMarker, true);
+		}
+		for (int i = 0; marker == null && i < groups.length; i++) {
+			marker = claim(groups[i], startIndex, endIndex, allocatedMarker, false);
+		}
+		//the free space read from the manifest already leaves out every extent in the tree
+		for (int i = 0; marker == null && i < groups.length; i++) {
+			marker = claim(groups[i], startIndex, endIndex, allocatedMarker, true);
+		}
+		return marker;
+	}
+	
+	private static FreeSpaceMarker claim(AllocationGroup group, long startIndex, long endIndex, AllocatedSpaceMarker allocatedMarker, boolean attach) {
+		group.lock.lock();
+		try {
+			return (attach) ? group.attach(endIndex, allocatedMarker) : group.allocate(startIndex, endIndex, allocatedMarker);
+		} finally {
+			group.lock.unlock();
+		}
+	}
+	
+	private int getGroupIndex(long index, int groupCount) {
+		long groupSize = this.groupSize;
+		return (groupSize == 0) ? 0 : (int) Math.max(0, Math.min(groupCount - 1, (index - 1024) / groupSize));
+	}
+	
+	//used while mounting, from then on forceAddNewAllocatedZoneToParent leaves its segments for claimDeferredSegments
+	protected void deferClaims() {
+		this.deferredSegments = new ArrayList<AllocatedSpaceMarker>();
+	}
+	
+	//returns false unless claims are being deferred
+	protected boolean deferClaim(AllocatedSpaceMarker segment) {
+		ArrayList<AllocatedSpaceMarker> segments = this.deferredSegments;
+		if (segments == null) {
+			return false;
+		}
+		segments.add(segment);
+		return true;
+	}
+	
+	/**
+	 * Ties every segment read while mounting to the free space that follows it.  The segments are sorted first, so
+	 * that when the free space has to be worked out from them it is built in a single pass rather than by splitting
+	 * a marker for every one.  Must be called before the free space is striped.
+	 */
+	protected void claimDeferredSegments(boolean freeSpaceLoaded) {
+		List<AllocatedSpaceMarker> segments = this.deferredSegments;
+		this.deferredSegments = null;
+		if (segments == null) {
+			return;
+		}
+		Collections.sort(segments, new Comparator<AllocatedSpaceMarker>() {
+			
+			@Override
+			public int compare(AllocatedSpaceMarker first, AllocatedSpaceMarker second) {
+				return Long.compare(first.beginIndex, second.beginIndex);
 			}
+			
+		});
+		AllocationGroup group = allocationGroups[0];
+		group.lock.lock();
+		try {
+			if (freeSpaceLoaded) {
+				List<AllocatedSpaceMarker> leftovers = new ArrayList<AllocatedSpaceMarker>();
+				for (AllocatedSpaceMarker segment : segments) {
+					FreeSpaceMarker marker = group.attach(segment.endIndex, segment);
+					if (marker == null) {
+						leftovers.add(segment);
+					}
+					segment.setFollowingUnallocatedZone(marker);
+				}
+				segments = leftovers;
+			} else {
+				segments = group.allocateSorted(segments);
+			}
+		} finally {
+			group.lock.unlock();
+		}
+		for (AllocatedSpaceMarker segment : segments) {
+			segment.setFollowingUnallocatedZone(allocateSpaceWithReserved(segment.beginIndex, segment.endIndex, segment));
 		}
-		return null;
 	}
 	
-
-	protected int getDefaultSegmentSize() {
-		return getFreeSpace() / 10  ;
+	/**
+	 * Reads every directory that has not been loaded from the manifest yet, for callers about to walk the whole
+	 * tree.  Each directory is read by a task of its own, so a large tree is read on every core.
+	 */
+	public void loadTree() {
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(root.new SubtreeLoader());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	//every group is locked in order, so nothing can be allocated or freed until they are unlocked
+	protected void lockAllocationGroups() {
+		for (AllocationGroup group : allocationGroups) {
+			group.lock.lock();
+		}
+	}
+	
+	protected void unlockAllocationGroups() {
+		AllocationGroup[] groups = this.allocationGroups;
+		for (int i = groups.length - 1; i > -1; i--) {
+			groups[i].lock.unlock();
+		}
+	}
+	
+	/**
+	 * Only call while holding every group's lock and the manifest's.  The markers are written in order as the gaps
+	 * and sizes between them, with the space held by detached files merged in, since a remount would never free it.
+	 */
+	protected void writeFreeSpace(ManifestWriter writer) throws IOException {
+		ArrayList<long[]> bounds = new ArrayList<long[]>();
+		for (AllocationGroup group : allocationGroups) {
+			for (FreeSpaceMarker marker : group.getMarkers()) {
+				bounds.add(new long[] {marker.leftBound, marker.rightBound});
+			}
+		}
+		for (VirtualFile file : detachedFiles) {
+			//hidden files are never given slots
+			for (AllocatedSpaceMarker segment : file.dataSegments) {
+				bounds.add(new long[] {segment.beginIndex, segment.endIndex});
+			}
+		}
+		//space freed next to a group boundary can leave a marker reaching into the group before it
+		Collections.sort(bounds, new Comparator<long[]>() {
+			
+			@Override
+			public int compare(long[] first, long[] second) {
+				return Long.compare(first[0], second[0]);
+			}
+			
+		});
+		ArrayList<long[]> merged = new ArrayList<long[]>();
+		for (long[] bound : bounds) {
+			long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (last != null && bound[0] <= last[1] + 1) {
+				last[1] = Math.max(last[1], bound[1]);
+			} else {
+				merged.add(bound);
+			}
+		}
+		writer.writeVarLong(merged.size());
+		long previousBound = 0;
+		for (long[] bound : merged) {
+			writer.writeVarLong(bound[0] - previousBound);
+			writer.writeVarLong(bound[1] - bound[0]);
+			previousBound = bound[1];
+		}
+	}
+	
+	/**
+	 * Replaces the free space with the markers written by writeFreeSpace, so that extents can be claimed without
+	 * reading the whole tree first.  The markers are put in a single group until the free space is striped.
+	 */
+	protected void loadFreeSpace(ManifestReader reader) throws IOException {
+		int count = reader.readVarInt();
+		AllocationGroup group = new AllocationGroup(0);
+		long previousBound = 0;
+		for (int i = 0; i < count; i++) {
+			long leftBound = previousBound + reader.readVarLong();
+			long rightBound = leftBound + reader.readVarLong();
+			if (leftBound < 1024 || rightBound > size - 1) {
+				throw new IOException("The free space in the manifest lies outside of the disk!");
+			}
+			group.addMarker(FreeSpaceMarker.generateUnreserved(this, leftBound, rightBound, group));
+			previousBound = rightBound;
+		}
+		this.allocationGroups = new AllocationGroup[] {group};
+	}
+	
+	/**
+	 * Splits the free space into allocation groups.  Subclasses call this once the existing extents have
+	 * been claimed, since the group boundaries can only be cut through free space.  The layout depends
+	 * only on the size of the disk.
+	 */
+	protected void stripeFreeSpace() {
+		ArrayList<FreeSpaceMarker> markers = new ArrayList<FreeSpaceMarker>();
+		for (AllocationGroup group : allocationGroups) {
+			markers.addAll(group.getMarkers());
+		}
+		int groupCount = (int) Math.max(1, Math.min(MAXIMUM_GROUPS, (size - 1024) / MINIMUM_GROUP_SIZE));
+		long groupSize = (size - 1024) / groupCount;
+		AllocationGroup[] groups = new AllocationGroup[groupCount];
+		for (int i = 0; i < groupCount; i++) {
+			groups[i] = new AllocationGroup(i);
+		}
+		for (FreeSpaceMarker marker : markers) {
+			int groupNumber = (int) Math.min(groupCount - 1, (marker.leftBound - 1024) / groupSize);
+			long boundary = 1024 + (groupNumber + 1) * groupSize;
+			while (groupNumber + 1 < groupCount && marker.leftBound < boundary - 1 && marker.rightBound > boundary) {
+				FreeSpaceMarker tail = marker.split(boundary, groups[groupNumber + 1]);
+				marker.group = groups[groupNumber];
+				groups[groupNumber].addMarker(marker);
+				marker = tail;
+				groupNumber++;
+				boundary += groupSize;
+			}
+			marker.group = groups[groupNumber];
+			groups[groupNumber].addMarker(marker);
+		}
+		this.allocationGroups = groups;
+		this.groupSize = groupSize;
+	}
+	
+	protected AllocationGroup[] getAllocationGroups() {
+		return this.allocationGroups;
+	}
+	
+	//keeps a growing file next to its last segment, and otherwise spreads writers across the groups by thread
+	protected int getPreferredGroup(VirtualFile file) {
+		AllocationGroup[] groups = this.allocationGroups;
+		if (file.hasData && !file.dataSegments.isEmpty()) {
+			FreeSpaceMarker marker = file.getEndMarker().followingUnallocatedZone;
+			if (marker != null && marker.group.index < groups.length) {
+				return marker.group.index;
+			}
+		}
+		return (int) (Thread.currentThread().getId() % groups.length);
+	}
+	
+	//never more than is free, so that growing a file can only fail when the disk is full
+	protected long getGrowthSize(VirtualFile file, long sizeHint) {
+		long growth = growthPolicy.getGrowthSize(file, sizeHint);
+		return Math.max(0, Math.min(growth, getFreeSpace()));
+	}
+	
+	public GrowthPolicy getGrowthPolicy() {
+		return this.growthPolicy;
+	}
+	
+	public void setGrowthPolicy(GrowthPolicy growthPolicy) {
+		if (growthPolicy == null) throw new IllegalArgumentException("The growth policy cannot be null!");
+		this.growthPolicy = growthPolicy;
+	}
+	
+	/**
+	 * Metadata changes are committed as they are made unless group commit is turned on.  Then they are queued, and
+	 * committed together once the oldest has waited for the interval in milliseconds or the threshold number of
+	 * changes has queued up, whichever comes first.  Either can be zero to go by the other alone.  Queued changes
+	 * are lost if the process dies, so callers that need them to be safe should call sync().
+	 */
+	public void setGroupCommit(long interval, int threshold) {
+		if (interval < 0 || threshold < 0) throw new IllegalArgumentException("Neither the interval nor the threshold can be negative!");
+		this.commitInterval = interval;
+		this.commitThreshold = threshold;
+	}
+	
+	public boolean isGroupCommitEnabled() {
+		return commitInterval > 0 || commitThreshold > 0;
+	}
+	
+	public long getCommitInterval() {
+		return this.commitInterval;
+	}
+	
+	public int getCommitThreshold() {
+		return this.commitThreshold;
+	}
+	
+	protected SlabAllocator getSlabAllocator() {
+		return this.slabAllocator;
+	}
+	
+	public long getSmallFileThreshold() {
+		return slabAllocator.getThreshold();
+	}
+	
+	/**
+	 * Files that stay under this size are packed into shared pages instead of being given their own segments.
+	 * It is rounded up to a power of two, and zero turns the slabs off for files created from then on.
+	 */
+	public void setSmallFileThreshold(long threshold) {
+		slabAllocator.setThreshold(threshold);
 	}
 	
 	public VirtualFile getRoot() {
 		return this.root;
 	}
 	
-	public VirtualFile mkdirs(String path) {
-		String[] pathSegments = path.split(File.separator);
-
-		if (pathSegments[0].equals("")) {
-			pathSegments = Arrays.copyOfRange(pathSegments, 1, pathSegments.length);
+	/**
+	 * Finds the file at the given absolute path, or returns null if there is none.  The files found recently are
+	 * remembered, so finding one again is a single lookup, see PathCache.
+	 */
+	public VirtualFile getFile(String path) {
+		PathCache pathCache = this.pathCache;
+		VirtualFile file = (pathCache == null) ? null : pathCache.get(path);
+		if (file == null) {
+			file = root.resolve(path);
+			if (file != null && pathCache != null) {
+				pathCache.put(path, file);
+			}
 		}
-
-		if (pathSegments[pathSegments.length - 1].equals("")) {
-			pathSegments = Arrays.copyOfRange(pathSegments, 0, pathSegments.length - 1);
+		return file;
+	}
+	
+	public int getPathCacheSize() {
+		PathCache pathCache = this.pathCache;
+		return (pathCache == null) ? 0 : pathCache.getSize();
+	}
+	
+	//rounded up to a power of two, zero turns the cache off
+	public void setPathCacheSize(int size) {
+		if (size < 0) throw new IllegalArgumentException("The path cache size cannot be negative!");
+		this.pathCache = (size == 0) ? null : new PathCache(size);
+	}
+	
+	/**
+	 * Starts moving fragmented files into contiguous runs in the background, copying at most the given number of
+	 * bytes per second.  Files larger than the given size are left as they are.  See Compactor.
+	 */
+	public synchronized Compactor startCompaction(long bytesPerSecond, long maximumFileSize) {
+		stopCompaction();
+		this.compactor = new Compactor(this, bytesPerSecond, maximumFileSize);
+		compactor.start();
+		return compactor;
+	}
+	
+	public Compactor startCompaction(long bytesPerSecond) {
+		return startCompaction(bytesPerSecond, Compactor.DEFAULT_MAXIMUM_FILE_SIZE);
+	}
+	
+	//waits for the file being moved, if any
+	public synchronized void stopCompaction() {
+		if (compactor != null) {
+			compactor.stop();
+			this.compactor = null;
 		}
-		FilePathMarker marker = this.root.getLastValidChild(pathSegments);
-
-		return marker.tail.addChildDirectories(pathSegments, marker.index);
+	}
+	
+	//returns the running compactor, or null if compaction is off
+	public synchronized Compactor getCompactor() {
+		return this.compactor;
+	}
+	
+	//moves a single file into one contiguous run straight away, returns false if it could not be or did not need to be
+	public boolean compact(VirtualFile file) {
+		return new Compactor(this, Long.MAX_VALUE, Long.MAX_VALUE).compact(file);
+	}
+	
+	//the operations done on this disk through its streams and channels, see IOMetrics
+	public IOMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	/**
+	 * Takes a snapshot of the free space and of the extents of every loaded file.  This locks each allocation group
+	 * in turn, so it is meant to be called every so often rather than on every allocation.
+	 */
+	public AllocatorStatistics getAllocatorStatistics() {
+		return new AllocatorStatistics(this);
+	}
+	
+	/**
+	 * Registers this disk's MBeans with the platform MBean server, under the domain net.chroem.glowdisk with the
+	 * given name.  The allocator is registered as type=Allocator, and each kind of operation counted by the metrics
+	 * as type=IO with the operation's name.  Registering them again replaces the earlier registration.
+	 */
+	public synchronized void registerMBeans(String name) throws JMException {
+		unregisterMBeans();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName allocatorName = new ObjectName("net.chroem.glowdisk:type=Allocator,name=" + ObjectName.quote(name));
+		server.registerMBean(new AllocatorMonitor(this), allocatorName);
+		mBeanNames.add(allocatorName);
+		for (int operation = 0; operation < IOMetrics.OPERATIONS; operation++) {
+			ObjectName operationName = new ObjectName("net.chroem.glowdisk:type=IO,name=" + ObjectName.quote(name) + ",operation=" + IOMetrics.getOperationName(operation));
+			server.registerMBean(new IOOperationMonitor(metrics, operation), operationName);
+			mBeanNames.add(operationName);
+		}
+	}
+	
+	public synchronized void unregisterMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : mBeanNames) {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		}
+		mBeanNames.clear();
+	}
+	
+	//used once a file has been deleted or moved away from the given path
+	protected void invalidatePath(VirtualFile file, String path) {
+		PathCache pathCache = this.pathCache;
+		if (pathCache != null && path != null) {
+			pathCache.invalidate(file, path);
+		}
+	}
+	
+	//throws if a file that is not a directory is in the way
+	public VirtualFile mkdirs(String path) throws FileAlreadyExistsException {
+		long startTime = metrics.start();
+		VirtualFile directory = this.root.addChildDirectories(path);
+		metrics.record(IOMetrics.MKDIRS, startTime, 0);
+		return directory;
 	}
 		
 }
@@ -23,8 +23,22 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -34,31 +48,63 @@ import com.google.gson.annotations.Expose;
 import net.chroem.glowdisk.virtualutils.AllocatedSpaceMarker;
 
 
+/**
+ * Readers of a file's data hold its read lock and writers hold its write lock, one operation at a time.
+ * The segment list is copy-on-write and the children are kept in a concurrent map by name, so both can always be
+ * walked without locking, and a child is found or added in constant time however large its directory is.
+ * Never ask the disk to update its manifest or log a change while holding one of these locks.
+ */
 public class VirtualFile {
-	@Expose protected ArrayList<AllocatedSpaceMarker> dataSegments = new ArrayList<AllocatedSpaceMarker>();
-	@Expose private ArrayList<VirtualFile> children = new ArrayList<VirtualFile>();
-	private VirtualFile parent;
-	@Expose private String name;
+	@Expose protected List<AllocatedSpaceMarker> dataSegments = new CopyOnWriteArrayList<AllocatedSpaceMarker>();
+	@Expose private final ConcurrentMap<String, VirtualFile> children = new ConcurrentHashMap<String, VirtualFile>();
+	private volatile VirtualFile parent;
+	@Expose private volatile String name;
 	
 	private VirtualDisk containingDisk;
 	
 	private final boolean isRoot;
 	
 	@Expose private final boolean isDirectory;
-	@Expose protected boolean hasData = false;
+	@Expose protected volatile boolean hasData = false;
 	
-	protected boolean deleted = false;
+	protected volatile boolean deleted = false;
 	private boolean deleteOnExit = false;
 	
-	@Expose private long lastModified = System.currentTimeMillis();
-	@Expose private boolean writeable = true;
+	@Expose private volatile long lastModified = System.currentTimeMillis();
+	@Expose private volatile boolean writeable = true;
+	
+	//changed when the file or a directory above it is moved
+	@Expose private volatile String path;
+	@Expose protected volatile long dataSize = 0;
+	//only changed while holding the write lock
+	private volatile long allocatedSize = 0;
+	
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	//counts how often it is taken, so that the compactor can tell whether the file changed while it was being copied
+	private final CountingLock writeLock = new CountingLock(lock.writeLock());
+	
+	//raised whenever the segments are replaced or space is given up, so that streams know to find their place again and
+	//a transfer knows the view it handed out without the lock may no longer belong to the file
+	protected volatile int relocations = 0;
+	
+	//the range locks taken through channels on this file, only made once the first one is taken
+	private volatile FileLockTable lockTable;
+	
+	//the children of a directory that have not been read from the manifest yet, see ensureLoaded
+	private volatile ManifestReader unloadedChildren;
+	//the space taken up outside of slab pages by everything under an unloaded directory
+	private long unloadedAllocatedSize;
+	//only changed while holding the write lock
+	private boolean loading = false;
 	
-	@Expose private final String path;
-	@Expose protected int dataSize = 0;
+	//flags of a manifest inode record
+	protected static final int DIRECTORY = 1;
+	protected static final int HAS_DATA = 2;
+	protected static final int WRITEABLE = 4;
 	
 	
 	@Deprecated
-	private VirtualFile(String path, boolean isDirectory) throws IllegalArgumentException, FileNotFoundException {
+	private VirtualFile(String path, boolean isDirectory) throws IllegalArgumentException, FileNotFoundException, FileAlreadyExistsException {
 		if (path == null) throw new IllegalArgumentException("Path cannot be null!"); 
 		this.path = path;
 		String[] pathSegments = path.split(File.separator);
@@ -73,7 +119,14 @@ public class VirtualFile {
 		parent.addChild(this);
 	}
 	
-	public VirtualFile(VirtualFile parent, String name, boolean isDirectory) throws IllegalArgumentException {
+	//the file is only attached to its parent once it is fully built, since attaching it journals it
+	public VirtualFile(VirtualFile parent, String name, boolean isDirectory) throws IllegalArgumentException, FileAlreadyExistsException {
+		if (parent == null || name == null) {
+			throw new IllegalArgumentException("Neither parent nor name can be null!");
+		}
+		if (!parent.isDirectory()) {
+			throw new IllegalArgumentException("Files can only be created inside directories!");
+		}
 		if (parent.getPath() != null) {
 			this.path = (parent.getPath().endsWith(File.separator)) ? parent.getPath() + name : parent.getPath() + File.separator + name; 
 		} else {
@@ -84,19 +137,19 @@ public class VirtualFile {
 		this.name = name;
 		this.isDirectory = isDirectory;
 		this.isRoot = false;
-		if (parent == null || name == null) {
-			throw new IllegalArgumentException("Neither parent nor name can be null!");
-		}
+		this.containingDisk = parent.getContainingDisk();
 		
 		parent.addChild(this);
-		this.containingDisk = parent.getContainingDisk();
 	}
 	
-	private VirtualFile(VirtualFile parent, JsonObject object) {
+	private VirtualFile(VirtualFile parent, JsonObject object) throws FileAlreadyExistsException {
 		this(parent, object.get("name").getAsString(), object.get("isDirectory").getAsBoolean());
 		this.lastModified = object.get("lastModified").getAsLong();
 		this.writeable = object.get("writeable").getAsBoolean();
 		this.hasData = object.get("hasData").getAsBoolean();
+		if (object.has("dataSize")) {
+			this.dataSize = object.get("dataSize").getAsLong();
+		}
 		if (isDirectory) {
 			for (JsonElement element : object.get("children").getAsJsonArray()) {
 				new VirtualFile(this, (JsonObject) element);
@@ -104,8 +157,8 @@ public class VirtualFile {
 		} else if (hasData) {
 			for (JsonElement element : object.get("dataSegments").getAsJsonArray()) {
 				JsonObject fileJson = element.getAsJsonObject();
-				int beginIndex = fileJson.get("beginIndex").getAsInt();
-				int endIndex = fileJson.get("endIndex").getAsInt();
+				long beginIndex = fileJson.get("beginIndex").getAsLong();
+				long endIndex = fileJson.get("endIndex").getAsLong();
 				AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(this, beginIndex, endIndex);
 			}
 		}
@@ -141,6 +194,232 @@ public class VirtualFile {
 		return new VirtualFile();
 	}
 	
+	//holds some of the disk's own metadata, and like the manifest is kept out of the tree
+	protected static VirtualFile generateHiddenFile() {
+		return new VirtualFile();
+	}
+	
+	/**
+	 * Writes the children of this directory as inode records, each followed by its own children or extents, and
+	 * returns the space they take up outside of slab pages.  The children of a directory that was never loaded are
+	 * copied from the old manifest as they are.
+	 */
+	protected long writeChildren(ManifestWriter writer) throws IOException {
+		Object[] children = this.children.values().toArray();
+		writer.writeVarLong(children.length);
+		long allocatedSize = 0;
+		for (Object child : children) {
+			allocatedSize += ((VirtualFile) child).writeRecord(writer);
+		}
+		return allocatedSize;
+	}
+	
+	private long writeRecord(ManifestWriter writer) throws IOException {
+		writer.writeByte(getFlags());
+		writer.writeString(name);
+		writer.writeSignedVarLong(lastModified);
+		if (isDirectory) {
+			ManifestReader unloadedChildren = this.unloadedChildren;
+			if (unloadedChildren != null) {
+				writer.writeVarLong(unloadedAllocatedSize);
+				writer.writeVarLong(unloadedChildren.remaining());
+				writer.copyChildren(this, unloadedChildren);
+				return unloadedAllocatedSize;
+			}
+			//the size and length of the children are filled in once they have been written
+			long sizePosition = writer.reserveVarLong(ManifestWriter.LONG_WIDTH);
+			long lengthPosition = writer.reserveVarLong(ManifestWriter.INT_WIDTH);
+			long allocatedSize = writeChildren(writer);
+			writer.patchVarLong(sizePosition, allocatedSize, ManifestWriter.LONG_WIDTH);
+			writer.patchVarLong(lengthPosition, writer.getPosition() - lengthPosition - ManifestWriter.INT_WIDTH, ManifestWriter.INT_WIDTH);
+			return allocatedSize;
+		} else {
+			writer.writeVarLong(dataSize);
+			Object[] segments = dataSegments.toArray();
+			writer.writeVarLong(segments.length);
+			long previousEnd = 0;
+			long allocatedSize = 0;
+			for (Object object : segments) {
+				AllocatedSpaceMarker segment = (AllocatedSpaceMarker) object;
+				long beginIndex = segment.beginIndex;
+				long endIndex = segment.endIndex;
+				writer.writeSignedVarLong(beginIndex - previousEnd);
+				writer.writeVarLong(endIndex - beginIndex);
+				previousEnd = endIndex;
+				if (!segment.isSlot()) {
+					allocatedSize += endIndex - beginIndex;
+				}
+			}
+			return allocatedSize;
+		}
+	}
+	
+	//the extents are collected by the reader, and claimed once the whole manifest has been read
+	protected void readChildren(ManifestReader reader) throws IOException {
+		if (!this.isDirectory) throw new IOException("Only directories can have children!");
+		int count = reader.readVarInt();
+		for (int i = 0; i < count; i++) {
+			readRecord(reader);
+		}
+	}
+	
+	private void readRecord(ManifestReader reader) throws IOException {
+		int flags = reader.readByte();
+		VirtualFile file = new VirtualFile(this, reader.readString(), (flags & DIRECTORY) != 0);
+		file.lastModified = reader.readSignedVarLong();
+		file.writeable = (flags & WRITEABLE) != 0;
+		file.hasData = (flags & HAS_DATA) != 0;
+		if (file.isDirectory && reader.getVersion() < 3) {
+			file.readChildren(reader);
+		} else if (file.isDirectory) {
+			//the directory's own children are left in the manifest until they are needed
+			file.unloadedAllocatedSize = reader.readVarLong();
+			file.unloadedChildren = reader.slice(reader.readVarLong());
+			containingDisk.adjustAllocatedSpace(file.unloadedAllocatedSize);
+		} else {
+			file.dataSize = reader.readVarLong();
+			int count = reader.readVarInt();
+			long previousEnd = 0;
+			for (int i = 0; i < count; i++) {
+				long beginIndex = previousEnd + reader.readSignedVarLong();
+				long endIndex = beginIndex + reader.readVarLong();
+				reader.addSegment(file, beginIndex, endIndex);
+				previousEnd = endIndex;
+			}
+		}
+	}
+	
+	protected int getFlags() {
+		return (isDirectory ? DIRECTORY : 0) | (hasData ? HAS_DATA : 0) | (writeable ? WRITEABLE : 0);
+	}
+	
+	//as journaled, with the page of every slot so that replaying can bring back a page that had been freed
+	protected void writeExtents(ManifestWriter writer) throws IOException {
+		writer.writeByte(getFlags());
+		writer.writeVarLong(dataSize);
+		Object[] segments = dataSegments.toArray();
+		writer.writeVarLong(segments.length);
+		for (Object object : segments) {
+			AllocatedSpaceMarker segment = (AllocatedSpaceMarker) object;
+			writer.writeVarLong(segment.beginIndex);
+			writer.writeVarLong(segment.getSize());
+			if (segment.isSlot()) {
+				writer.writeByte(Long.numberOfTrailingZeros(segment.page.slotSize));
+				writer.writeVarLong(segment.page.segment.beginIndex);
+				writer.writeVarLong(segment.page.segment.getSize());
+			} else {
+				writer.writeByte(0);
+			}
+		}
+	}
+	
+	//used while replaying the journal, once this file's old extents have been released
+	protected void readExtents(ManifestReader reader) throws IOException {
+		this.hasData = (reader.readByte() & HAS_DATA) != 0;
+		this.dataSize = reader.readVarLong();
+		SlabAllocator slabAllocator = containingDisk.getSlabAllocator();
+		int count = reader.readVarInt();
+		for (int i = 0; i < count; i++) {
+			long beginIndex = reader.readVarLong();
+			long endIndex = beginIndex + reader.readVarLong();
+			int slotShift = reader.readByte();
+			if (slotShift > 0) {
+				long pageIndex = reader.readVarLong();
+				slabAllocator.claimPage(pageIndex, pageIndex + reader.readVarLong(), 1L << slotShift);
+			}
+			AllocatedSpaceMarker.forceAddNewAllocatedZoneToParent(this, beginIndex, endIndex);
+		}
+	}
+	
+	//false for a directory whose children were skipped while mounting and have not been read since
+	protected boolean isLoaded() {
+		return unloadedChildren == null;
+	}
+	
+	//the children without loading them, used to look at the files in memory without reading the rest of the manifest
+	protected Collection<VirtualFile> getLoadedChildren() {
+		return children.values();
+	}
+	
+	/**
+	 * Reads the children of a directory that was skipped while mounting.  Their extents are still marked as
+	 * allocated in the free space, so they only have to be tied back to the markers that follow them.
+	 */
+	protected void ensureLoaded() {
+		if (unloadedChildren == null) {
+			return;
+		}
+		writeLock.lock();
+		try {
+			ManifestReader unloadedChildren = this.unloadedChildren;
+			//adding the children calls back in here
+			if (unloadedChildren == null || loading) {
+				return;
+			}
+			this.loading = true;
+			try {
+				ManifestReader reader = unloadedChildren.duplicate();
+				readChildren(reader);
+				reader.claimSegments();
+				containingDisk.adjustAllocatedSpace(-unloadedAllocatedSize);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				this.loading = false;
+			}
+			this.unloadedChildren = null;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Points this directory's children at their copy in a new manifest if they are still unloaded.  If they were
+	 * loaded in the meantime, the directories below it may still have been read from the old manifest, so they are
+	 * moved in turn.  Waits for a load that is under way, since it reads from the old manifest.
+	 */
+	protected void moveUnloadedChildren(ManifestRegion from, ManifestRegion to, long offset) {
+		Object[] children;
+		writeLock.lock();
+		try {
+			ManifestReader unloadedChildren = this.unloadedChildren;
+			if (unloadedChildren != null) {
+				if (unloadedChildren.isIn(from)) {
+					this.unloadedChildren = unloadedChildren.move(to, offset);
+				}
+				return;
+			}
+			children = this.children.values().toArray();
+		} finally {
+			writeLock.unlock();
+		}
+		for (Object child : children) {
+			VirtualFile file = (VirtualFile) child;
+			if (file.isDirectory) {
+				file.moveUnloadedChildren(from, to, offset);
+			}
+		}
+	}
+	
+	//loads this directory and then every directory below it, each in a task of its own
+	protected class SubtreeLoader extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected void compute() {
+			ensureLoaded();
+			ArrayList<SubtreeLoader> tasks = new ArrayList<SubtreeLoader>();
+			for (VirtualFile child : children.values()) {
+				if (child.isDirectory) {
+					tasks.add(child.new SubtreeLoader());
+				}
+			}
+			invokeAll(tasks);
+		}
+		
+	}
+	
 	protected void constructChildrenFromJson(JsonArray array) throws Exception {
 		if (!this.isRoot) throw new Exception("Must be root!");
 		for (JsonElement element : array) {
@@ -152,52 +431,217 @@ public class VirtualFile {
 		return this.path;
 	}
 	
-	public int getDataSize() {
+	public long getDataSize() {
 		return dataSize;
 	}
 	
 	public void delete() {
-		this.deleted = true;
+		long startTime = containingDisk.metrics.start();
+		if (parent != null) {
+			parent.removeChild(this);
+		}
+		release();
+		containingDisk.invalidatePath(this, path);
+		containingDisk.logChange(MetadataJournal.DELETE, this);
+		containingDisk.metrics.record(IOMetrics.DELETE, startTime, 0);
+	}
+	
+	/**
+	 * Moves this file into the given directory under the given name, and returns false if there already is a file
+	 * by that name or this one has been deleted.  A directory is moved with everything below it.
+	 */
+	public boolean moveTo(VirtualFile directory, String name) throws IllegalArgumentException {
+		return moveTo(directory, name, false);
+	}
+	
+	/**
+	 * Like moveTo, but a file that is already there is deleted in the same step, once the move is certain to go
+	 * ahead.  A directory that is already there is never replaced.
+	 */
+	public boolean moveTo(VirtualFile directory, String name, boolean replace) throws IllegalArgumentException {
+		if (isRoot || parent == null) throw new IllegalArgumentException("The root cannot be moved!");
+		if (!directory.isDirectory()) throw new IllegalArgumentException("Files can only be moved into directories!");
+		for (VirtualFile ancestor = directory; ancestor != null; ancestor = ancestor.parent) {
+			if (ancestor == this) throw new IllegalArgumentException("A directory cannot be moved into itself!");
+		}
+		return containingDisk.rename(this, directory, name, replace);
+	}
+	
+	//only call from the disk, which records the move
+	protected boolean move(VirtualFile directory, String name, boolean replace) {
+		VirtualFile parent = this.parent;
+		if (deleted || directory.deleted) {
+			return false;
+		}
+		if (parent == directory && this.name.equals(name)) {
+			return true;
+		}
+		directory.ensureLoaded();
+		VirtualFile replaced;
+		directory.writeLock.lock();
+		try {
+			replaced = directory.children.putIfAbsent(name, this);
+			if (replaced != null) {
+				if (!replace || replaced.isDirectory) {
+					return false;
+				}
+				directory.children.put(name, this);
+			}
+		} finally {
+			directory.writeLock.unlock();
+		}
+		parent.removeChild(this);
+		String path = this.path;
+		this.name = name;
+		this.parent = directory;
+		updatePath();
+		containingDisk.invalidatePath(this, path);
+		if (replaced != null) {
+			replaced.release();
+			containingDisk.invalidatePath(replaced, replaced.path);
+		}
+		return true;
+	}
+	
+	//a directory that is still loading is waited for, and one that has not started yet takes the new path from here
+	private void updatePath() {
+		String parentPath = parent.getPath();
+		this.path = (parentPath.endsWith(File.separator)) ? parentPath + name : parentPath + File.separator + name;
+		if (isDirectory) {
+			lock.readLock().lock();
+			try {
+				for (VirtualFile child : children.values()) {
+					child.updatePath();
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+	
+	private void release() {
+		ensureLoaded();
+		writeLock.lock();
+		try {
+			this.deleted = true;
+		} finally {
+			writeLock.unlock();
+		}
 		if (isDirectory) {
-			for (VirtualFile file : children) {
-				file.delete();
+			for (VirtualFile file : children.values()) {
+				file.release();
 			}
 		} else {
-			for (AllocatedSpaceMarker marker : dataSegments) {
-				marker.deallocate();
+			writeLock.lock();
+			try {
+				for (AllocatedSpaceMarker marker : dataSegments) {
+					marker.deallocate();
+				}
+			} finally {
+				writeLock.unlock();
 			}
 		}
-		parent.removeChild(this);
-		containingDisk.updateFileManifest();
 	}
 	
-	public void addChild(VirtualFile file) {
-		children.add(file);
-		containingDisk.updateFileManifest();
+	//nothing is changed or journaled if there already is a file by that name
+	public void addChild(VirtualFile file) throws FileAlreadyExistsException {
+		ensureLoaded();
+		boolean loading;
+		writeLock.lock();
+		try {
+			if (children.putIfAbsent(file.getName(), file) != null) {
+				throw new FileAlreadyExistsException(file.getPath());
+			}
+			loading = this.loading;
+		} finally {
+			writeLock.unlock();
+		}
+		if (!loading) {
+			containingDisk.logChange(MetadataJournal.CREATE, file);
+		}
+	}
+	
+	protected boolean hasChild(String name) {
+		ensureLoaded();
+		return children.containsKey(name);
 	}
 	
 	protected void removeChild(VirtualFile file) {
-		children.remove(file);
-		containingDisk.updateFileManifest();
+		ensureLoaded();
+		writeLock.lock();
+		try {
+			children.remove(file.getName(), file);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	public Lock getReadLock() {
+		return lock.readLock();
+	}
+	
+	public Lock getWriteLock() {
+		return writeLock;
+	}
+	
+	protected long getWriteCount() {
+		return writeLock.count;
+	}
+	
+	//returns null if no lock has ever been taken on the file and none is to be made
+	protected FileLockTable getLockTable(boolean create) {
+		FileLockTable lockTable = this.lockTable;
+		if (lockTable == null && create) {
+			synchronized (this) {
+				lockTable = this.lockTable;
+				if (lockTable == null) {
+					lockTable = new FileLockTable();
+					this.lockTable = lockTable;
+				}
+			}
+		}
+		return lockTable;
 	}
 	
 	public String getName() {
 		return this.name;
 	}
 	
-	//update later to use an index to avoid making tons of array copies
 	public VirtualFile getChild(String[] path) throws FileNotFoundException {
-		//String name = path[0];
-		if (path.length == 0 /*path.length == 1 && !isRoot &&this.getName().equals(name)*/ ) { //!!!!!!!!!!!!!!!!!!!!!
-			return this;
-		} else {
-			for (VirtualFile file : children) {
-				if (file.getName().equals(path[0])) {
-					return file.getChild(Arrays.copyOfRange(path, 1, path.length));
-				}
+		VirtualFile file = this;
+		for (String name : path) {
+			file.ensureLoaded();
+			file = file.children.get(name);
+			if (file == null) {
+				throw new FileNotFoundException();
+			}
+		}
+		return file;
+	}
+	
+	/**
+	 * Finds the file at the given path below this one, or returns null if there is none.  Each name is looked up
+	 * where it lies in the path instead of being cut out of it, so resolving a path allocates nothing.  Empty names,
+	 * such as a leading separator, are skipped.
+	 */
+	public VirtualFile resolve(String path) {
+		PathSegment segment = PATH_SEGMENTS.get();
+		VirtualFile file = this;
+		int length = path.length();
+		int beginIndex = 0;
+		while (beginIndex < length && file != null) {
+			int endIndex = path.indexOf(File.separatorChar, beginIndex);
+			if (endIndex < 0) {
+				endIndex = length;
 			}
+			if (endIndex > beginIndex) {
+				file.ensureLoaded();
+				file = file.children.get(segment.set(path, beginIndex, endIndex));
+			}
+			beginIndex = endIndex + 1;
 		}
-		throw new FileNotFoundException();
+		segment.set(null, 0, 0);
+		return file;
 	}
 	
 	public VirtualFile getParent() {
@@ -208,40 +652,105 @@ public class VirtualFile {
 		return this.containingDisk;
 	}
 	
-	public  boolean changeSize(int sizeToChange) throws IllegalArgumentException {
-		/*System.out.println("Allocated size: " + getAllocatedSize());
-		System.out.println("Disk free space: " + this.getContainingDisk().getFreeSpace());
-		System.out.println("Size to change: " + sizeToChange);
-		*/
-		if (sizeToChange > this.getContainingDisk().getFreeSpace() || getAllocatedSize() + sizeToChange < 0) throw new IllegalArgumentException("Cannot grow the file larger than the disk or shrink its size below zero!");
-		if (this.hasData && sizeToChange > 0) {
+	public  boolean changeSize(long sizeToChange) throws IllegalArgumentException {
+		writeLock.lock();
+		try {
+			checkResize(sizeToChange);
+			if (sizeToChange < 0) {
+				relocations++;
+			}
+			return countResize(sizeToChange, resize(sizeToChange));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	//makes sure that at least the given size is allocated, without changing the size of the data
+	public boolean preallocate(long size) throws IllegalArgumentException {
+		writeLock.lock();
+		try {
+			long allocatedSize = getAllocatedSize();
+			if (size <= allocatedSize) {
+				return true;
+			}
+			checkResize(size - allocatedSize);
+			return countResize(size - allocatedSize, resize(size - allocatedSize));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	//only checked once per change, since a change that is partly done can leave less free space than is still asked for
+	private void checkResize(long sizeToChange) {
+		if (sizeToChange > 0) {
+			containingDisk.allocations.incrementAndGet();
+		}
+		if (sizeToChange > this.getContainingDisk().getFreeSpace() || getAllocatedSize() + sizeToChange < 0) {
+			if (sizeToChange > 0) {
+				containingDisk.allocationFailures.incrementAndGet();
+			}
+			throw new IllegalArgumentException("Cannot grow the file larger than the disk or shrink its size below zero!");
+		}
+	}
+	
+	//counts the growth that could not be finished for the allocator statistics
+	private boolean countResize(long sizeToChange, boolean resized) {
+		if (sizeToChange > 0 && !resized) {
+			containingDisk.allocationFailures.incrementAndGet();
+		}
+		return resized;
+	}
+	
+	//carries on growing in another extent, after the last one had less room than was asked for
+	private boolean retryResize(long sizeToChange) {
+		containingDisk.allocationRetries.incrementAndGet();
+		return resize(sizeToChange);
+	}
+	
+	private boolean resize(long sizeToChange) {
+		if (this.hasData && sizeToChange > 0 && !dataSegments.isEmpty()) {
 			AllocatedSpaceMarker endMarker = getEndMarker();
-			int freeSpace = endMarker.followingUnallocatedZone.getSize() - 1;
-			if (sizeToChange > freeSpace) {
-				endMarker.grow(freeSpace);
-				int sizeAllocated = AllocatedSpaceMarker.addNewAllocatedZoneToParent(this, sizeToChange);
-				return (sizeToChange > (freeSpace + sizeAllocated)) ? changeSize(sizeToChange - (freeSpace + sizeAllocated)) : true;
-			} else {
-				endMarker.grow(sizeToChange);
+			if (endMarker.isSlot()) {
+				return growSlot(endMarker, sizeToChange);
+			}
+			long freeSpace = Math.max(endMarker.followingUnallocatedZone.getSize() - 1, 0);
+			if (sizeToChange <= freeSpace && endMarker.grow(sizeToChange)) {
 				return true;
 			}
-		} else if (this.hasData && sizeToChange < 0) {
+			long sizeGrown = (freeSpace > 0 && freeSpace < sizeToChange && endMarker.grow(freeSpace)) ? freeSpace : 0;
+			long sizeAllocated = AllocatedSpaceMarker.addNewAllocatedZoneToParent(this, sizeToChange - sizeGrown);
+			if (sizeGrown + sizeAllocated < 1) {
+				return false;
+			}
+			return (sizeToChange > (sizeGrown + sizeAllocated)) ? retryResize(sizeToChange - (sizeGrown + sizeAllocated)) : true;
+		} else if (this.hasData && sizeToChange < 0 && !dataSegments.isEmpty()) {
 			AllocatedSpaceMarker endMarker = getEndMarker();
-			int size = endMarker.getSize();
+			long size = endMarker.getSize();
 			if (size + sizeToChange < 0) {
-				endMarker.deallocate();
-				return changeSize(sizeToChange + size);
+				if (!endMarker.deallocate()) {
+					return false;
+				}
+				return resize(sizeToChange + size);
 			} else {
-				endMarker.shrink(sizeToChange * -1);
-				return true;
+				return endMarker.shrink(sizeToChange * -1);
 			}
 		} else if (sizeToChange > 0){
-			
-			int newZoneSize = AllocatedSpaceMarker.addNewAllocatedZoneToParent(this, sizeToChange);
+			SlabAllocator slabAllocator = containingDisk.getSlabAllocator();
+			if (dataSegments.isEmpty() && slabAllocator.accepts(this, sizeToChange)) {
+				AllocatedSpaceMarker slot = slabAllocator.allocateSlot(this, sizeToChange);
+				if (slot != null) {
+					appendSegment(slot);
+					this.hasData = true;
+					return true;
+				}
+			}
+			long newZoneSize = AllocatedSpaceMarker.addNewAllocatedZoneToParent(this, sizeToChange);
+			if (newZoneSize < 1) {
+				return false;
+			}
 			this.hasData = true;
 			if (newZoneSize < sizeToChange) {
-				
-				return changeSize(sizeToChange - newZoneSize);
+				return retryResize(sizeToChange - newZoneSize);
 			} else {
 				return true;
 			}
@@ -252,16 +761,124 @@ public class VirtualFile {
 	
 	
 	
+	//a small file is moved into a larger slot, and anything bigger than the slabs take leaves them for ordinary segments
+	private boolean growSlot(AllocatedSpaceMarker slot, long sizeToChange) {
+		long room = slot.getCapacity() - slot.getSize();
+		if (sizeToChange <= room) {
+			return slot.grow(sizeToChange);
+		}
+		SlabAllocator slabAllocator = containingDisk.getSlabAllocator();
+		long size = slot.getSize() + sizeToChange;
+		if (slabAllocator.accepts(this, size)) {
+			AllocatedSpaceMarker newSlot = slabAllocator.allocateSlot(this, size);
+			if (newSlot != null) {
+				containingDisk.moveData(slot.beginIndex, newSlot.beginIndex, slot.getSize());
+				slot.deallocate();
+				appendSegment(newSlot);
+				relocations++;
+				return true;
+			}
+		}
+		return leaveSlot(slot, size);
+	}
+	
+	/**
+	 * Moves the data out of the file's slot, which is always its only segment, into ordinary segments of the given
+	 * size and gives the slot back, so that the file does not keep the slot as its first extent.  Returns false if
+	 * the disk could not hold all of it, leaving whatever it did get allocated.
+	 */
+	private boolean leaveSlot(AllocatedSpaceMarker slot, long size) {
+		long sizeAllocated = 0;
+		while (sizeAllocated < size) {
+			long newZoneSize = AllocatedSpaceMarker.addNewAllocatedZoneToParent(this, size - sizeAllocated);
+			if (newZoneSize < 1) {
+				break;
+			}
+			sizeAllocated += newZoneSize;
+		}
+		if (sizeAllocated < slot.getSize()) {
+			//what cannot be given back stays behind the slot, which is how files used to outgrow their slots
+			while (dataSegments.size() > 1) {
+				if (!getEndMarker().deallocate()) {
+					break;
+				}
+			}
+			return false;
+		}
+		long index = slot.beginIndex;
+		long remaining = slot.getSize();
+		for (int i = 1; remaining > 0; i++) {
+			AllocatedSpaceMarker segment = dataSegments.get(i);
+			long length = Math.min(remaining, segment.getSize());
+			containingDisk.moveData(index, segment.beginIndex, length);
+			index += length;
+			remaining -= length;
+		}
+		slot.deallocate();
+		long fileOffset = 0;
+		for (AllocatedSpaceMarker segment : dataSegments) {
+			segment.fileOffset = fileOffset;
+			fileOffset += segment.getSize();
+		}
+		relocations++;
+		return sizeAllocated >= size;
+	}
+	
+	protected void appendSegment(AllocatedSpaceMarker marker) {
+		if (dataSegments.isEmpty()) {
+			marker.fileOffset = 0;
+		} else {
+			AllocatedSpaceMarker endMarker = getEndMarker();
+			marker.fileOffset = endMarker.fileOffset + endMarker.getSize();
+			endMarker.flexible = false;
+		}
+		marker.flexible = true;
+		dataSegments.add(marker);
+		adjustAllocatedSize(marker, marker.getSize());
+	}
+	
+	protected void removeSegment(AllocatedSpaceMarker marker) {
+		marker.flexible = false;
+		if (dataSegments.remove(marker)) {
+			adjustAllocatedSize(marker, -marker.getSize());
+		}
+		if (!dataSegments.isEmpty()) {
+			getEndMarker().flexible = true;
+		}
+	}
+	
+	//binary search over the segments' offsets within the file, returns -1 if the position is not allocated
+	protected int getSegmentNumber(long position) {
+		int low = 0;
+		int high = dataSegments.size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			AllocatedSpaceMarker marker = dataSegments.get(middle);
+			if (position < marker.fileOffset) {
+				high = middle - 1;
+			} else if (position >= marker.fileOffset + marker.getSize()) {
+				low = middle + 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+	
 	protected AllocatedSpaceMarker getEndMarker() {
 		return dataSegments.get(dataSegments.size() - 1);
 	}
 	
-	protected int getAllocatedSize() {
-		int size = 0;
-		for (AllocatedSpaceMarker marker : dataSegments) {
-			size += marker.getSize();
+	protected long getAllocatedSize() {
+		return allocatedSize;
+	}
+	
+	protected void adjustAllocatedSize(AllocatedSpaceMarker marker, long size) {
+		this.allocatedSize += size;
+		//slots were already taken out of the free space along with their page
+		if (!marker.isSlot()) {
+			containingDisk.adjustAllocatedSpace(size);
 		}
-		return size;
 	}
 	
 	public boolean isDirectory(){
@@ -269,36 +886,124 @@ public class VirtualFile {
 	}
 	
 	public VirtualFile[] getChildren() {
-		return (VirtualFile[]) this.children.toArray();
+		ensureLoaded();
+		return this.children.values().toArray(new VirtualFile[0]);
+	}
+	
+	//lists the children without copying them, see VirtualDirectoryStream
+	public DirectoryStream<VirtualFile> newDirectoryStream() {
+		return new VirtualDirectoryStream(this, null);
+	}
+	
+	public DirectoryStream<VirtualFile> newDirectoryStream(String glob) {
+		return new VirtualDirectoryStream(this, glob);
 	}
 	
-	protected FilePathMarker getLastValidChild(String[] path) {
-		return getLastValidChild(new FilePathMarker(path));
+	//iterates over every child, or only the one with the given name if there is one
+	protected Iterator<VirtualFile> getChildIterator(String name) {
+		ensureLoaded();
+		if (name == null) {
+			return children.values().iterator();
+		}
+		VirtualFile child = children.get(name);
+		return (child == null) ? Collections.<VirtualFile>emptyIterator() : Collections.singletonList(child).iterator();
 	}
 	
-	private FilePathMarker getLastValidChild(FilePathMarker marker) {
-		if (marker.index + 1 == marker.path.length) {
-			marker.tail = this;
-			return marker;
+	private static final ThreadLocal<PathSegment> PATH_SEGMENTS = new ThreadLocal<PathSegment>() {
+		
+		@Override
+		protected PathSegment initialValue() {
+			return new PathSegment();
+		}
+		
+	};
+	
+	/**
+	 * A name inside a longer path, used as the key when looking up a child.  Its hash code is the one its name
+	 * would have as a String, and it equals the String holding the same name, which is all a map needs of the
+	 * key it is asked for.  It must never be stored in a map.
+	 */
+	private static final class PathSegment {
+		private String path;
+		private int beginIndex;
+		private int length;
+		private int hash;
+		
+		private PathSegment set(String path, int beginIndex, int endIndex) {
+			this.path = path;
+			this.beginIndex = beginIndex;
+			this.length = endIndex - beginIndex;
+			int hash = 0;
+			for (int i = beginIndex; i < endIndex; i++) {
+				hash = 31 * hash + path.charAt(i);
+			}
+			this.hash = hash;
+			return this;
 		}
-		for (VirtualFile child : children) {
-			if (child.name.equals(marker.path[marker.index])) {
-				marker.index++;
-				return child.getLastValidChild(marker);
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof String)) {
+				return false;
 			}
+			String name = (String) object;
+			return name.length() == length && path.regionMatches(beginIndex, name, 0, length);
 		}
-		marker.tail = this;
-		return marker;
+		
 	}
 	
-	protected static class FilePathMarker {
-		final String[] path;
-		int index;
-		VirtualFile tail;
+	private static final class CountingLock implements Lock {
+		private final Lock lock;
+		//only changed while holding the lock
+		private volatile long count = 0;
 		
-		public FilePathMarker(String[] path) {
-			this.path = path;
-			this.index = 0;
+		private CountingLock(Lock lock) {
+			this.lock = lock;
+		}
+		
+		@Override
+		public void lock() {
+			lock.lock();
+			count++;
+		}
+		
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			lock.lockInterruptibly();
+			count++;
+		}
+		
+		@Override
+		public boolean tryLock() {
+			if (!lock.tryLock()) {
+				return false;
+			}
+			count++;
+			return true;
+		}
+		
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			if (!lock.tryLock(time, unit)) {
+				return false;
+			}
+			count++;
+			return true;
+		}
+		
+		@Override
+		public void unlock() {
+			lock.unlock();
+		}
+		
+		@Override
+		public Condition newCondition() {
+			return lock.newCondition();
 		}
 		
 	}
@@ -307,14 +1012,48 @@ public class VirtualFile {
 		return this.isRoot;
 	}
 	
-	protected VirtualFile addChildDirectories(String[] path, int index) {
-		VirtualFile file = new VirtualFile(this, path[index], true);
-		if (index + 1 == path.length) {
-			containingDisk.updateFileManifest();
-			return file;
-		} else {
-			return file.addChildDirectories(path , index + 1);
+	//a parent directory that another thread creates first is used as it is, but the last one has to be new
+	protected VirtualFile addChildDirectories(String path) throws FileAlreadyExistsException {
+		PathSegment segment = PATH_SEGMENTS.get();
+		VirtualFile file = this;
+		int length = path.length();
+		while (length > 0 && path.charAt(length - 1) == File.separatorChar) {
+			length--;
+		}
+		int beginIndex = 0;
+		try {
+			while (beginIndex < length) {
+				int endIndex = path.indexOf(File.separatorChar, beginIndex);
+				if (endIndex < 0 || endIndex > length) {
+					endIndex = length;
+				}
+				if (endIndex > beginIndex) {
+					if (!file.isDirectory()) {
+						throw new FileAlreadyExistsException(file.getPath());
+					}
+					file.ensureLoaded();
+					VirtualFile child = file.children.get(segment.set(path, beginIndex, endIndex));
+					if (child == null || endIndex == length) {
+						try {
+							child = new VirtualFile(file, path.substring(beginIndex, endIndex), true);
+						} catch (FileAlreadyExistsException e) {
+							child = file.children.get(segment.set(path, beginIndex, endIndex));
+							if (child == null || endIndex == length) {
+								throw e;
+							}
+						}
+					}
+					file = child;
+				}
+				beginIndex = endIndex + 1;
+			}
+		} finally {
+			segment.set(null, 0, 0);
+		}
+		if (file == this) {
+			throw new FileAlreadyExistsException(getPath());
 		}
+		return file;
 	}
 	
 	public void deleteOnExit() {
@@ -338,7 +1077,7 @@ public class VirtualFile {
 	
 	public void setWriteable(boolean writeable) {
 		this.writeable = writeable;
-		containingDisk.updateFileManifest();
+		containingDisk.logChange(MetadataJournal.ATTRIBUTES, this);
 	}
 	
 	